@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer.benchmark;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.script.ScriptException;
+
+import io.github.zekerzhayard.nashorncompatlayer.NashornCompatLayer;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.nashorn.api.scripting.NashornScriptEngineFactory;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchedMemberBenchmark {
+    @Param({"4", "16", "64"})
+    public int fields;
+
+    private ScriptObjectMirror record;
+    private ScriptObjectMirror array;
+    private String[] names;
+    private Map<String, Object> members;
+    private Object[] slots;
+
+    @Setup
+    public void setup() throws ScriptException {
+        var engine = NashornCompatLayer.convertScriptEngine(new NashornScriptEngineFactory().getScriptEngine());
+        this.names = new String[this.fields];
+        this.members = new LinkedHashMap<>();
+        this.slots = new Object[this.fields];
+        var source = new StringBuilder("({");
+        for (int i = 0; i < this.fields; i++) {
+            this.names[i] = "field" + i;
+            this.members.put(this.names[i], i * 0.5);
+            this.slots[i] = i;
+            source.append(i == 0 ? "" : ", ").append(this.names[i]).append(": ").append(i);
+        }
+        this.record = (ScriptObjectMirror) engine.eval(source.append("})").toString());
+        this.array = (ScriptObjectMirror) engine.eval("new Array(" + this.fields + ")");
+    }
+
+    @Benchmark
+    public void getMember(Blackhole blackhole) {
+        for (String name : this.names) {
+            blackhole.consume(this.record.getMember(name));
+        }
+    }
+
+    @Benchmark
+    public Object[] getMembers() {
+        return this.record.getMembers(this.names);
+    }
+
+    @Benchmark
+    public void setMember() {
+        for (Map.Entry<String, Object> entry : this.members.entrySet()) {
+            this.record.setMember(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Benchmark
+    public void setMembers() {
+        this.record.setMembers(this.members);
+    }
+
+    @Benchmark
+    public void getSlot(Blackhole blackhole) {
+        for (int i = 0; i < this.fields; i++) {
+            blackhole.consume(this.array.getSlot(i));
+        }
+    }
+
+    @Benchmark
+    public Object[] getSlots() {
+        return this.array.getSlots(0, this.fields);
+    }
+
+    @Benchmark
+    public void setSlot() {
+        for (int i = 0; i < this.fields; i++) {
+            this.array.setSlot(i, this.slots[i]);
+        }
+    }
+
+    @Benchmark
+    public void setSlots() {
+        this.array.setSlots(0, this.slots);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+
+// Class files fed to the remapper benchmarks.
+//   minecraft: net/minecraft/ classes from the jar given by -Dnashorncompatlayer.benchmark.minecraftJar, or from the class path,
+//              only benchmarked by default when gradle jmh is given -PminecraftJar.
+//   forge:     net/minecraftforge/ classes from the class path.
+//   legacy:    Nashorn's own classes moved back to jdk/nashorn/, so that nearly every class needs remapping.
+public class ClassCorpus {
+    public final static String MINECRAFT_JAR_PROPERTY = "nashorncompatlayer.benchmark.minecraftJar";
+
+    public static byte[][] load(String corpus) throws IOException {
+        byte[][] classes = switch (corpus) {
+            case "minecraft" -> {
+                String minecraftJar = System.getProperty(MINECRAFT_JAR_PROPERTY);
+                yield minecraftJar == null ? classPath(name -> name.startsWith("net/minecraft/")) : read(Path.of(minecraftJar), name -> name.startsWith("net/minecraft/"));
+            }
+            case "forge" -> classPath(name -> name.startsWith("net/minecraftforge/"));
+            case "legacy" -> Stream.of(classPath(name -> name.startsWith("org/openjdk/nashorn/"))).map(ClassCorpus::toLegacy).toArray(byte[][]::new);
+            default -> throw new IllegalArgumentException("Unknown corpus: " + corpus);
+        };
+        if (classes.length == 0) {
+            throw new IllegalStateException(String.format("The %s corpus is empty, put its classes on the class path%s.", corpus, corpus.equals("minecraft") ? " or set -D" + MINECRAFT_JAR_PROPERTY : ""));
+        }
+        return classes;
+    }
+
+    public static byte[][] classPath(Predicate<String> filter) throws IOException {
+        List<byte[]> classes = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classes.addAll(List.of(read(Path.of(entry), filter)));
+        }
+        return classes.toArray(new byte[0][]);
+    }
+
+    // The filter is given the internal name of the class file, e.g. "net/minecraft/client/Minecraft.class".
+    private static byte[][] read(Path path, Predicate<String> filter) throws IOException {
+        // Module descriptors and multi-release duplicates are not loaded as regular classes.
+        Predicate<String> classFilter = filter.and(name -> !name.endsWith("module-info.class") && !name.startsWith("META-INF/"));
+        List<byte[]> classes = new ArrayList<>();
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+                files.filter(p -> p.toString().endsWith(".class") && classFilter.test(path.relativize(p).toString().replace(File.separatorChar, '/'))).forEach(p -> classes.add(readAllBytes(p)));
+            }
+        } else if (path.toString().endsWith(".jar") && Files.isRegularFile(path)) {
+            try (JarFile jarFile = new JarFile(path.toFile())) {
+                for (JarEntry jarEntry : jarFile.stream().filter(e -> e.getName().endsWith(".class") && classFilter.test(e.getName())).toArray(JarEntry[]::new)) {
+                    classes.add(jarFile.getInputStream(jarEntry).readAllBytes());
+                }
+            }
+        }
+        return classes.toArray(new byte[0][]);
+    }
+
+    private static byte[] readAllBytes(Path path) {
+        try {
+            return Files.readAllBytes(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] toLegacy(byte[] classBytes) {
+        var classWriter = new ClassWriter(0);
+        new ClassReader(classBytes).accept(new ClassRemapper(classWriter, new Remapper() {
+            @Override
+            public Object mapValue(Object value) {
+                return value instanceof String ? ((String) value).replace("org.openjdk.nashorn.", "jdk.nashorn.").replace("org/openjdk/nashorn/", "jdk/nashorn/") : super.mapValue(value);
+            }
+
+            @Override
+            public String map(String internalName) {
+                return internalName.startsWith("org/openjdk/nashorn/") ? internalName.substring(8) : internalName;
+            }
+        }), 0);
+        return classWriter.toByteArray();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import io.github.zekerzhayard.nashorncompatlayer.remapper.NashornClassRemapper;
+import io.github.zekerzhayard.nashorncompatlayer.remapper.NashornPackageRemapper;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Every class file on the benchmark class path, the legacy wrappers of this project included, is remapped once per invocation.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassRemapperBenchmark {
+    private byte[][] classes;
+    private ByteBuffer[] directBuffers;
+
+    @Setup
+    public void setup() throws IOException {
+        this.classes = ClassCorpus.classPath(name -> true);
+        this.directBuffers = new ByteBuffer[this.classes.length];
+        for (int i = 0; i < this.classes.length; i++) {
+            this.directBuffers[i] = ByteBuffer.allocateDirect(this.classes[i].length).put(this.classes[i]).flip();
+        }
+    }
+
+    @Benchmark
+    public void remapBytes(Blackhole blackhole) {
+        for (byte[] classBytes : this.classes) {
+            blackhole.consume(NashornClassRemapper.remap(classBytes));
+        }
+    }
+
+    @Benchmark
+    public void remapDirectBuffer(Blackhole blackhole) {
+        for (ByteBuffer classBuffer : this.directBuffers) {
+            blackhole.consume(NashornClassRemapper.remap(classBuffer));
+        }
+    }
+
+    // What remapping cost before the constant pool scan: a full ASM round trip for every class.
+    @Benchmark
+    public void remapWithoutScan(Blackhole blackhole) {
+        for (byte[] classBytes : this.classes) {
+            var classReader = new ClassReader(classBytes);
+            var classWriter = new ClassWriter(0);
+            classReader.accept(new ClassRemapper(classWriter, new NashornPackageRemapper()), 0);
+            blackhole.consume(classWriter.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+import cpw.mods.modlauncher.Environment;
+import cpw.mods.modlauncher.LaunchPluginHandler;
+import cpw.mods.modlauncher.Launcher;
+import cpw.mods.modlauncher.api.IEnvironment;
+import cpw.mods.modlauncher.api.ITransformerActivity;
+import cpw.mods.modlauncher.serviceapi.ILaunchPluginService;
+import io.github.zekerzhayard.nashorncompatlayer.CheckedLambdaUtils;
+import jdk.internal.misc.Unsafe;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+
+// A stand-in for the parts of a modlauncher launch the compat layer relies on, so that its startup can be measured without Forge.
+// Launcher.INSTANCE gets an empty LaunchPluginHandler and a real Environment, and classes are pushed through the
+// registered launch plugins the way modlauncher's class transformer does it.
+public class HeadlessLauncher {
+    private final static MethodHandles.Lookup IMPL_LOOKUP = CheckedLambdaUtils.wrapBiFunction(
+        Unsafe.getUnsafe(),
+        CheckedLambdaUtils.wrapSupplier(() -> MethodHandles.Lookup.class.getDeclaredField("IMPL_LOOKUP")),
+        (unsafe, field) -> (MethodHandles.Lookup) unsafe.getReference(unsafe.staticFieldBase(field), unsafe.staticFieldOffset(field))
+    );
+
+    private final Map<String, ILaunchPluginService> plugins = new HashMap<>();
+
+    public static HeadlessLauncher install() throws Throwable {
+        var headlessLauncher = new HeadlessLauncher();
+        Unsafe unsafe = Unsafe.getUnsafe();
+        Launcher launcher = (Launcher) unsafe.allocateInstance(Launcher.class);
+        LaunchPluginHandler launchPlugins = (LaunchPluginHandler) unsafe.allocateInstance(LaunchPluginHandler.class);
+        IEnvironment environment = (IEnvironment) IMPL_LOOKUP.findConstructor(Environment.class, MethodType.methodType(void.class, Launcher.class)).invoke(launcher);
+        unsafe.putReference(launchPlugins, unsafe.objectFieldOffset(LaunchPluginHandler.class, "plugins"), headlessLauncher.plugins);
+        unsafe.putReference(launcher, unsafe.objectFieldOffset(Launcher.class, "launchPlugins"), launchPlugins);
+        unsafe.putReference(launcher, unsafe.objectFieldOffset(Launcher.class, "environment"), environment);
+        environment.computePropertyIfAbsent(IEnvironment.Keys.MODLIST.get(), key -> new ArrayList<>());
+        Launcher.INSTANCE = launcher;
+        return headlessLauncher;
+    }
+
+    public Map<String, ILaunchPluginService> getPlugins() {
+        return this.plugins;
+    }
+
+    // Returns the bytes which would be defined, the input itself when no plugin changed the class.
+    public byte[] transform(byte[] classBytes) {
+        var classReader = new ClassReader(classBytes);
+        Type classType = Type.getObjectType(classReader.getClassName());
+        List<ILaunchPluginService> plugins = new ArrayList<>();
+        for (ILaunchPluginService plugin : this.plugins.values()) {
+            EnumSet<ILaunchPluginService.Phase> phases = plugin.handlesClass(classType, false, ITransformerActivity.CLASSLOADING_REASON);
+            if (phases.contains(ILaunchPluginService.Phase.AFTER)) {
+                plugins.add(plugin);
+            }
+        }
+        if (plugins.isEmpty()) {
+            return classBytes;
+        }
+        var classNode = new ClassNode();
+        classReader.accept(classNode, ClassReader.EXPAND_FRAMES);
+        boolean changed = false;
+        for (ILaunchPluginService plugin : plugins) {
+            changed |= plugin.processClass(ILaunchPluginService.Phase.AFTER, classNode, classType, ITransformerActivity.CLASSLOADING_REASON);
+        }
+        if (!changed) {
+            return classBytes;
+        }
+        // Frames are kept as they are, computing them would need every referenced class to be loadable.
+        var classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classNode.accept(classWriter);
+        return classWriter.toByteArray();
+    }
+
+    // Transforms every class of every jar in the directory, returns how many of them were changed.
+    public int loadMods(Path modsDirectory) throws IOException {
+        int changed = 0;
+        try (Stream<Path> mods = Files.list(modsDirectory)) {
+            for (Path mod : (Iterable<Path>) mods.filter(p -> p.toString().endsWith(".jar"))::iterator) {
+                try (JarFile jarFile = new JarFile(mod.toFile())) {
+                    for (JarEntry jarEntry : jarFile.stream().filter(e -> e.getName().endsWith(".class")).toArray(JarEntry[]::new)) {
+                        byte[] classBytes = jarFile.getInputStream(jarEntry).readAllBytes();
+                        if (this.transform(classBytes) != classBytes) {
+                            changed++;
+                        }
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    // Spreads the classes over the given number of mod jars, round robin.
+    public static Path createModsDirectory(Path directory, int mods, byte[][] classes) throws IOException {
+        Path modsDirectory = Files.createDirectories(directory.resolve("mods"));
+        var manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        for (int mod = 0; mod < mods; mod++) {
+            try (OutputStream os = Files.newOutputStream(modsDirectory.resolve("mod" + mod + ".jar")); var jos = new JarOutputStream(os, manifest)) {
+                for (int i = mod; i < classes.length; i += mods) {
+                    jos.putNextEntry(new JarEntry(new ClassReader(classes[i]).getClassName() + ".class"));
+                    jos.write(classes[i]);
+                    jos.closeEntry();
+                }
+            }
+        }
+        return modsDirectory;
+    }
+}
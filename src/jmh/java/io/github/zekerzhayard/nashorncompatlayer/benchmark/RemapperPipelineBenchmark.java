@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import cpw.mods.modlauncher.api.ITransformerActivity;
+import cpw.mods.modlauncher.serviceapi.ILaunchPluginService;
+import io.github.zekerzhayard.nashorncompatlayer.remapper.NashornClassRemapper;
+import io.github.zekerzhayard.nashorncompatlayer.remapper.NashornPackageRemapper;
+import io.github.zekerzhayard.nashorncompatlayer.remapper.RemapperEntrance;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One operation is one class of the corpus, so throughput is in classes per second and sample time gives the per-class latency.
+// processClass is handed a freshly parsed ClassNode like modlauncher does, parseClassNode is the baseline to subtract from it.
+// Run with -prof gc (the default of the gradle jmh task) to get allocation rates.
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RemapperPipelineBenchmark {
+    // The minecraft corpus needs a jar, gradle jmh -PminecraftJar=... adds it to the list
+    @Param({"forge", "legacy"})
+    public String corpus;
+
+    private byte[][] classes;
+    private Type[] types;
+    private RemapperEntrance entrance;
+    private int index;
+
+    @Setup
+    public void setup() throws IOException {
+        this.classes = ClassCorpus.load(this.corpus);
+        this.types = new Type[this.classes.length];
+        for (int i = 0; i < this.classes.length; i++) {
+            this.types[i] = Type.getObjectType(new ClassReader(this.classes[i]).getClassName());
+        }
+        this.entrance = new RemapperEntrance();
+    }
+
+    private int next() {
+        int index = this.index;
+        this.index = index + 1 == this.classes.length ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public ClassNode parseClassNode() {
+        var classNode = new ClassNode();
+        new ClassReader(this.classes[this.next()]).accept(classNode, 0);
+        return classNode;
+    }
+
+    @Benchmark
+    public ClassNode processClass() {
+        int index = this.next();
+        var classNode = new ClassNode();
+        new ClassReader(this.classes[index]).accept(classNode, 0);
+        if (!this.entrance.handlesClass(this.types[index], false, ITransformerActivity.CLASSLOADING_REASON).isEmpty()) {
+            this.entrance.processClass(ILaunchPluginService.Phase.AFTER, classNode, this.types[index], ITransformerActivity.CLASSLOADING_REASON);
+        }
+        return classNode;
+    }
+
+    @Benchmark
+    public byte[] packageRemapper() {
+        var classReader = new ClassReader(this.classes[this.next()]);
+        var classWriter = new ClassWriter(0);
+        classReader.accept(new ClassRemapper(classWriter, new NashornPackageRemapper()), 0);
+        return classWriter.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] classRemapper() {
+        return NashornClassRemapper.remap(this.classes[this.next()]);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import io.github.zekerzhayard.nashorncompatlayer.ScriptProfiler;
+import io.github.zekerzhayard.nashorncompatlayer.ScriptWarmup;
+import io.github.zekerzhayard.nashorncompatlayer.remapper.RemapperEntrance;
+import org.apache.commons.lang3.ArrayUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cold start of the compat layer inside a HeadlessLauncher: every fork measures a single launch, i.e. bootstrapping the
+// remapper plugin, starting the services NashornCompatLayerEntrance starts, and loading every class of a synthetic mods directory.
+// The module layer bootstrap in NashornCompatLayerEntrance's static initializer is left out, it only works from the packaged
+// mod jar and Nashorn is already on the class path here.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark {
+    @Param({"10", "50"})
+    public int mods;
+
+    private Path directory;
+    private Path modsDirectory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // Plain classes mixed with classes referencing jdk.nashorn, like a modpack with a few script mods.
+        byte[][] classes = ArrayUtils.addAll(ClassCorpus.classPath(name -> !name.startsWith("org/openjdk/nashorn/") && !name.startsWith("jdk/nashorn/")), ClassCorpus.load("legacy"));
+        this.directory = Files.createTempDirectory("nashorncompatlayer-startup");
+        this.modsDirectory = HeadlessLauncher.createModsDirectory(this.directory, this.mods, classes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void launch(Memory memory) throws Throwable {
+        HeadlessLauncher launcher = HeadlessLauncher.install();
+        RemapperEntrance.bootstrap();
+        ScriptProfiler.startFromProperties();
+        ScriptWarmup.start();
+        memory.remappedClasses = launcher.loadMods(this.modsDirectory);
+    }
+
+    // Reported next to the startup time, the heap is measured after a full GC so that only what the launch retained is counted.
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Memory {
+        public long retainedHeapBytes;
+        public long remappedClasses;
+
+        @TearDown(Level.Iteration)
+        public void measure() {
+            MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+            System.gc();
+            this.retainedHeapBytes = memoryMXBean.getHeapMemoryUsage().getUsed();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import javax.script.ScriptException;
+
+import io.github.zekerzhayard.nashorncompatlayer.StructuredClone;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.nashorn.api.scripting.NashornScriptEngine;
+import org.openjdk.nashorn.api.scripting.NashornScriptEngineFactory;
+import org.openjdk.nashorn.api.scripting.ScriptObjectMirror;
+
+// Moves a list of entity-like records from one engine to another, through StructuredClone and through JSON.stringify and JSON.parse.
+// The encoded sizes of both are reported as the secondary results of serialize and stringify.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StructuredCloneBenchmark {
+    private final static String DATA_SCRIPT = String.join("\n",
+        "(function (count) {",
+        "    var entities = [];",
+        "    for (var i = 0; i < count; i++) {",
+        "        entities.push({ id: i, type: 'minecraft:zombie', name: 'Zombie ' + i, alive: i % 7 != 0, health: 20 - i % 20 / 3,",
+        "            position: { x: i * 1.5, y: 64, z: -i * 0.25 }, tags: ['hostile', 'undead'], equipment: { mainHand: null, armor: [0, 0, 1, 0] } });",
+        "    }",
+        "    return { dimension: 'minecraft:overworld', tick: 123456, entities: entities };",
+        "})"
+    );
+
+    @Param({"10", "1000"})
+    public int entities;
+
+    private ScriptObjectMirror data;
+    private NashornScriptEngine target;
+    private ScriptObjectMirror stringify;
+    private ScriptObjectMirror parse;
+    private ByteBuffer serialized;
+    private String json;
+
+    @Setup
+    public void setup() throws ScriptException {
+        var factory = new NashornScriptEngineFactory();
+        var source = (NashornScriptEngine) factory.getScriptEngine();
+        this.target = (NashornScriptEngine) factory.getScriptEngine();
+        this.data = (ScriptObjectMirror) ((ScriptObjectMirror) source.eval(DATA_SCRIPT)).call(null, this.entities);
+        this.stringify = (ScriptObjectMirror) source.eval("JSON.stringify");
+        this.parse = (ScriptObjectMirror) this.target.eval("JSON.parse");
+        this.serialized = StructuredClone.serialize(this.data);
+        this.json = this.stringify.call(null, this.data).toString();
+    }
+
+    @Benchmark
+    public Object structuredClone() throws ScriptException {
+        return StructuredClone.deserialize(StructuredClone.serialize(this.data), this.target);
+    }
+
+    @Benchmark
+    public Object structuredCloneDirect() throws ScriptException {
+        return StructuredClone.deserialize(StructuredClone.serialize(this.data, true), this.target);
+    }
+
+    @Benchmark
+    public Object json() {
+        return this.parse.call(null, this.stringify.call(null, this.data));
+    }
+
+    @Benchmark
+    public ByteBuffer serialize(EncodedSize size) {
+        ByteBuffer serialized = StructuredClone.serialize(this.data);
+        size.structuredCloneBytes = serialized.remaining();
+        return serialized;
+    }
+
+    // The records are ASCII only, so characters and UTF-8 bytes are the same
+    @Benchmark
+    public Object stringify(EncodedSize size) {
+        Object json = this.stringify.call(null, this.data);
+        size.jsonBytes = json.toString().length();
+        return json;
+    }
+
+    @Benchmark
+    public Object deserialize() throws ScriptException {
+        return StructuredClone.deserialize(this.serialized, this.target);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return this.parse.call(null, this.json);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class EncodedSize {
+        public long structuredCloneBytes;
+        public long jsonBytes;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+
+import io.github.zekerzhayard.nashorncompatlayer.NashornCompatLayer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.nashorn.api.scripting.NashornScriptEngine;
+import org.openjdk.nashorn.api.scripting.NashornScriptEngineFactory;
+import org.openjdk.nashorn.api.scripting.ScriptObjectMirror;
+
+// Each operation is run once through the legacy wrappers and once directly against openjdk Nashorn,
+// the difference between a legacy* and an openjdk* score is the wrapper tax.
+// Run with -prof gc (the default of the gradle jmh task) to see the allocations added by the wrappers.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WrapperOverheadBenchmark {
+    private final static String SCRIPT = String.join("\n",
+        "var record = { name: 'record', count: 1, nested: { value: 2 }, list: [1, 2, 3], flag: true, ratio: 0.5 };",
+        "function add(a, b) { return a + b; }",
+        "add"
+    );
+
+    private jdk.nashorn.api.scripting.NashornScriptEngine legacyEngine;
+    private jdk.nashorn.api.scripting.ScriptObjectMirror legacyRecord;
+    private jdk.nashorn.api.scripting.ScriptObjectMirror legacyFunction;
+    private CompiledScript legacyCompiled;
+
+    private NashornScriptEngine openjdkEngine;
+    private ScriptObjectMirror openjdkRecord;
+    private ScriptObjectMirror openjdkFunction;
+    private CompiledScript openjdkCompiled;
+
+    private Object value = 0;
+
+    @Setup
+    public void setup() throws ScriptException {
+        this.openjdkEngine = (NashornScriptEngine) new NashornScriptEngineFactory().getScriptEngine();
+        this.openjdkFunction = (ScriptObjectMirror) this.openjdkEngine.eval(SCRIPT);
+        this.openjdkRecord = (ScriptObjectMirror) this.openjdkEngine.get("record");
+        this.openjdkCompiled = this.openjdkEngine.compile("add(record.count, 1)");
+
+        this.legacyEngine = (jdk.nashorn.api.scripting.NashornScriptEngine) NashornCompatLayer.convertScriptEngine(new NashornScriptEngineFactory().getScriptEngine());
+        this.legacyFunction = (jdk.nashorn.api.scripting.ScriptObjectMirror) this.legacyEngine.eval(SCRIPT);
+        this.legacyRecord = (jdk.nashorn.api.scripting.ScriptObjectMirror) this.legacyEngine.get("record");
+        this.legacyCompiled = this.legacyEngine.compile("add(record.count, 1)");
+    }
+
+    // getMember, returning a primitive and a nested object which has to be wrapped
+
+    @Benchmark
+    public void legacyGetMember(Blackhole blackhole) {
+        blackhole.consume(this.legacyRecord.getMember("count"));
+        blackhole.consume(this.legacyRecord.getMember("nested"));
+    }
+
+    @Benchmark
+    public void openjdkGetMember(Blackhole blackhole) {
+        blackhole.consume(this.openjdkRecord.getMember("count"));
+        blackhole.consume(this.openjdkRecord.getMember("nested"));
+    }
+
+    // setMember
+
+    @Benchmark
+    public void legacySetMember() {
+        this.legacyRecord.setMember("count", this.value);
+    }
+
+    @Benchmark
+    public void openjdkSetMember() {
+        this.openjdkRecord.setMember("count", this.value);
+    }
+
+    // call
+
+    @Benchmark
+    public Object legacyCall() {
+        return this.legacyFunction.call(null, 1, 2);
+    }
+
+    @Benchmark
+    public Object openjdkCall() {
+        return this.openjdkFunction.call(null, 1, 2);
+    }
+
+    // entrySet iteration
+
+    @Benchmark
+    public void legacyEntrySet(Blackhole blackhole) {
+        for (Map.Entry<String, Object> entry : this.legacyRecord.entrySet()) {
+            blackhole.consume(entry.getValue());
+        }
+    }
+
+    @Benchmark
+    public void openjdkEntrySet(Blackhole blackhole) {
+        for (Map.Entry<String, Object> entry : this.openjdkRecord.entrySet()) {
+            blackhole.consume(entry.getValue());
+        }
+    }
+
+    // eval, a cached compiled script and a plain string which is compiled by Nashorn's own class cache
+
+    @Benchmark
+    public Object legacyEvalCompiled() throws ScriptException {
+        return this.legacyCompiled.eval();
+    }
+
+    @Benchmark
+    public Object openjdkEvalCompiled() throws ScriptException {
+        return this.openjdkCompiled.eval();
+    }
+
+    @Benchmark
+    public Object legacyEval() throws ScriptException {
+        return this.legacyEngine.eval("record.nested");
+    }
+
+    @Benchmark
+    public Object openjdkEval() throws ScriptException {
+        return this.openjdkEngine.eval("record.nested");
+    }
+
+    // invokeFunction
+
+    @Benchmark
+    public Object legacyInvokeFunction() throws ScriptException, NoSuchMethodException {
+        return this.legacyEngine.invokeFunction("add", 1, 2);
+    }
+
+    @Benchmark
+    public Object openjdkInvokeFunction() throws ScriptException, NoSuchMethodException {
+        return this.openjdkEngine.invokeFunction("add", 1, 2);
+    }
+}
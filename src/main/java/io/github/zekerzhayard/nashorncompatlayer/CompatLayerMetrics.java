@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import io.github.zekerzhayard.nashorncompatlayer.remapper.RemapperEntrance;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Counters of all engines created by this mod, exposed as MBeans under the io.github.zekerzhayard.nashorncompatlayer domain.
+// Each engine has its own EngineMetrics, shared by every legacy wrapper of it, which is unregistered once the engine has been garbage collected.
+// Footprints are estimated on demand, engines that stay alive and idle for a long time are likely leaked by their owner.
+public class CompatLayerMetrics implements CompatLayerMetricsMBean {
+    private final static Logger LOGGER = LogManager.getLogger();
+    private final static String DOMAIN = "io.github.zekerzhayard.nashorncompatlayer";
+    private final static String LOG_INTERVAL_PROPERTY = "nashorncompatlayer.metrics.logInterval";
+
+    private final static Cleaner CLEANER = Cleaner.create();
+    private final static AtomicLong CREATED_ENGINES = new AtomicLong();
+    private final static LongAdder WRAPPER_CONVERSIONS = new LongAdder();
+    private final static Map<Long, EngineMetrics> ENGINES = new ConcurrentHashMap<>();
+    private final static Map<org.openjdk.nashorn.api.scripting.NashornScriptEngine, EngineMetrics> INSTANCES = Collections.synchronizedMap(new WeakHashMap<>());
+
+    static {
+        registerMBean(new CompatLayerMetrics(), "type=CompatLayer");
+
+        long interval = Long.getLong(LOG_INTERVAL_PROPERTY, 0L);
+        if (interval > 0L) {
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "NashornCompatLayer Metrics");
+                thread.setDaemon(true);
+                return thread;
+            }).scheduleAtFixedRate(CompatLayerMetrics::log, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    public static EngineMetrics registerEngine(org.openjdk.nashorn.api.scripting.NashornScriptEngine engine) {
+        return INSTANCES.computeIfAbsent(engine, CompatLayerMetrics::createEngineMetrics);
+    }
+
+    private static EngineMetrics createEngineMetrics(org.openjdk.nashorn.api.scripting.NashornScriptEngine engine) {
+        EngineMetrics metrics = new EngineMetrics(CREATED_ENGINES.incrementAndGet(), engine);
+        ENGINES.put(metrics.id, metrics);
+        ObjectName name = registerMBean(metrics, "type=ScriptEngine,id=" + metrics.id);
+        CLEANER.register(engine, () -> {
+            ENGINES.remove(metrics.id);
+            unregisterMBean(name);
+        });
+        return metrics;
+    }
+
+    public static void recordWrapperConversion() {
+        WRAPPER_CONVERSIONS.increment();
+    }
+
+    // Live engines attributed to the owner which haven't been evicted yet, eldest first, evicted ones refuse any further script
+    static List<org.openjdk.nashorn.api.scripting.NashornScriptEngine> getEngines(String owner) {
+        return ENGINES.values().stream()
+            .filter(metrics -> owner.equals(metrics.owner) && !metrics.evicted)
+            .sorted(Comparator.comparingLong(EngineMetrics::getId))
+            .map(metrics -> metrics.engine.get())
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+    }
+
+    // Only counters, footprints are left to logFootprints() and the MBeans
+    public static void log() {
+        List<EngineMetrics> engines = ENGINES.values().stream().sorted(Comparator.comparingLong(EngineMetrics::getId)).collect(Collectors.toList());
+        Map<String, Long> owners = engines.stream().collect(Collectors.groupingBy(metrics -> Objects.toString(metrics.owner, "untracked"), TreeMap::new, Collectors.counting()));
+        LOGGER.info("Script engines: {} live, {} created, {} refused and {} evicted by quotas, {} wrapper conversions, {} watchdog overruns, {} classes skipped by the remapper",
+            engines.size(), CREATED_ENGINES.get(), EngineQuotas.getRefusedEngineCount(), EngineQuotas.getEvictedEngineCount(),
+            WRAPPER_CONVERSIONS.sum(), ScriptWatchdog.getOverrunCount(), RemapperEntrance.getSkippedClassCount());
+        owners.forEach((owner, count) -> LOGGER.info("  {}: {} engines", owner, count));
+        engines.forEach(metrics -> LOGGER.info("  {}", metrics));
+    }
+
+    // Walks the object graph of every live engine, which takes a while for large engines
+    public static void logFootprints() {
+        // Engines measured later aren't charged again for what they share with the earlier ones
+        EngineFootprint footprint = new EngineFootprint();
+        Map<EngineMetrics, Long> engines = new LinkedHashMap<>();
+        Map<String, long[]> owners = new TreeMap<>();
+        for (EngineMetrics metrics : ENGINES.values()) {
+            Object engine = metrics.engine.get();
+            long bytes = engine == null ? 0L : footprint.measure(engine);
+            long[] owner = owners.computeIfAbsent(Objects.toString(metrics.owner, "untracked"), k -> new long[2]);
+            owner[0]++;
+            owner[1] += bytes;
+            engines.put(metrics, bytes);
+        }
+        LOGGER.info("Script engine footprints: ~{} KiB in {} live engines", engines.values().stream().mapToLong(Long::longValue).sum() >> 10, engines.size());
+        owners.forEach((owner, totals) -> LOGGER.info("  {}: {} engines, ~{} KiB", owner, totals[0], totals[1] >> 10));
+        engines.forEach((metrics, bytes) -> LOGGER.info("  engine-{}, ~{} KiB", metrics.getId(), bytes >> 10));
+    }
+
+    private static ObjectName registerMBean(Object mbean, String properties) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            return name;
+        } catch (JMException e) {
+            LOGGER.debug("Unable to register MBean {}", properties, e);
+            return null;
+        }
+    }
+
+    private static void unregisterMBean(ObjectName name) {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                LOGGER.debug("Unable to unregister MBean {}", name, e);
+            }
+        }
+    }
+
+    @Override
+    public long getLiveEngineCount() {
+        return ENGINES.size();
+    }
+
+    @Override
+    public long getCreatedEngineCount() {
+        return CREATED_ENGINES.get();
+    }
+
+    @Override
+    public long getWrapperConversionCount() {
+        return WRAPPER_CONVERSIONS.sum();
+    }
+
+    @Override
+    public long getWatchdogOverrunCount() {
+        return ScriptWatchdog.getOverrunCount();
+    }
+
+    @Override
+    public long getRemapperSkippedClassCount() {
+        return RemapperEntrance.getSkippedClassCount();
+    }
+
+    @Override
+    public long getRefusedEngineCount() {
+        return EngineQuotas.getRefusedEngineCount();
+    }
+
+    @Override
+    public long getEvictedEngineCount() {
+        return EngineQuotas.getEvictedEngineCount();
+    }
+
+    @Override
+    public long estimateFootprintBytes() {
+        EngineFootprint footprint = new EngineFootprint();
+        return ENGINES.values().stream()
+            .map(metrics -> metrics.engine.get())
+            .filter(Objects::nonNull)
+            .mapToLong(footprint::measure)
+            .sum();
+    }
+}
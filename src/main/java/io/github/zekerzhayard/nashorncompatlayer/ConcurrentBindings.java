@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.script.Bindings;
+
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+
+// A Bindings implementation which could be filled by several Java threads while a script is reading it.
+// Values are converted once when they are put, legacy mirrors are unwrapped since scripts can't use them directly.
+// Nashorn reads the bindings through get, also to find the global it keeps under NashornScriptEngine.NASHORN_GLOBAL,
+// so the Map methods hand the stored values back unchanged, and getLegacy is there for Java callers expecting legacy mirrors.
+public class ConcurrentBindings extends AbstractMap<String, Object> implements Bindings {
+    // ConcurrentHashMap doesn't accept null values, but javax.script.Bindings does.
+    private final static Object NULL = new Object();
+
+    private final ConcurrentHashMap<String, Object> map;
+    private final EntrySet entrySet = new EntrySet();
+
+    public ConcurrentBindings() {
+        this.map = new ConcurrentHashMap<>();
+    }
+
+    public ConcurrentBindings(int initialCapacity) {
+        this.map = new ConcurrentHashMap<>(initialCapacity);
+    }
+
+    public ConcurrentBindings(Map<String, Object> map) {
+        this(map.size());
+        this.putAll(map);
+    }
+
+    static void checkKey(Object key) {
+        if (Objects.requireNonNull(key, "key can not be null") instanceof String) {
+            if (((String) key).isEmpty()) {
+                throw new IllegalArgumentException("key can not be empty");
+            }
+        } else {
+            throw new ClassCastException("key should be a String");
+        }
+    }
+
+    // Legacy mirrors are unwrapped here since scripts can't use them directly.
+    static Object mask(Object value) {
+        if (value == null) {
+            return NULL;
+        } else if (value instanceof ScriptObjectMirror) {
+            return ((ScriptObjectMirror) value).instance;
+        }
+        return value;
+    }
+
+    static Object unmask(Object value) {
+        return value == NULL ? null : value;
+    }
+
+    public Object getLegacy(final String key) {
+        return NashornCompatLayer.convertScriptObjectMirror(this.get(key));
+    }
+
+    // javax.script.Bindings methods
+
+    @Override
+    public Object put(final String key, final Object value) {
+        checkKey(key);
+        return unmask(this.map.put(key, mask(value)));
+    }
+
+    @Override
+    public void putAll(final Map<? extends String, ? extends Object> toMerge) {
+        for (Map.Entry<? extends String, ? extends Object> entry : toMerge.entrySet()) {
+            this.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Object putIfAbsent(final String key, final Object value) {
+        checkKey(key);
+        return unmask(this.map.putIfAbsent(key, mask(value)));
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        checkKey(key);
+        return this.map.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        return this.map.containsValue(mask(value));
+    }
+
+    @Override
+    public Object get(final Object key) {
+        checkKey(key);
+        return unmask(this.map.get(key));
+    }
+
+    @Override
+    public Object remove(final Object key) {
+        checkKey(key);
+        return unmask(this.map.remove(key));
+    }
+
+    @Override
+    public void clear() {
+        this.map.clear();
+    }
+
+    @Override
+    public int size() {
+        return this.map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.map.isEmpty();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return this.map.keySet();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return this.entrySet;
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+        @Override
+        public Iterator<Map.Entry<String, Object>> iterator() {
+            Iterator<Map.Entry<String, Object>> iterator = ConcurrentBindings.this.map.entrySet().iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, Object> next() {
+                    Map.Entry<String, Object> entry = iterator.next();
+                    return new SimpleImmutableEntry<>(entry.getKey(), unmask(entry.getValue()));
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return ConcurrentBindings.this.map.size();
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentBindings.this.map.clear();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.lang.ref.Reference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.stream.LongStream;
+
+import jdk.internal.misc.Unsafe;
+
+// Estimates the heap retained by script engines by walking the object graph reachable from them and summing shallow sizes.
+// Only objects of the Java runtime, Nashorn and this mod are walked into, anything else handed to scripts (game objects for instance)
+// is counted shallowly, so that a mod exposing the server to its scripts isn't charged for the whole world.
+// Top level variables live in scope objects bound into method handles, so those are walked too, but not the lambda forms,
+// method types and member names behind them which are shared by the whole runtime.
+// Classes, class loaders, threads and referents of weak references are never followed.
+// Objects already measured by the same instance are not counted again, so one instance can sum up several engines.
+public class EngineFootprint {
+    private final static Unsafe UNSAFE = Unsafe.getUnsafe();
+    private final static int MAX_OBJECTS = Integer.getInteger("nashorncompatlayer.footprint.maxObjects", 1 << 20);
+    private final static long HEADER_SIZE = UNSAFE.objectFieldOffset(Probe.class, "value");
+    private final static long REFERENT_OFFSET = UNSAFE.objectFieldOffset(Reference.class, "referent");
+    private final static String[] WALKED_PACKAGES = {"java.", "javax.script.", "jdk.dynalink.", "jdk.nashorn.", "org.openjdk.nashorn.", "io.github.zekerzhayard.nashorncompatlayer."};
+    private final static String[] SKIPPED_PACKAGES = {"jdk.internal."};
+    private final static Set<String> IGNORED_CLASSES = Set.of("java.lang.invoke.LambdaForm", "java.lang.invoke.MethodType", "java.lang.invoke.MemberName");
+
+    private final static ClassValue<Layout> LAYOUTS = new ClassValue<>() {
+        @Override
+        protected Layout computeValue(Class<?> type) {
+            return new Layout(type);
+        }
+    };
+
+    private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+
+    public static long estimate(Object root) {
+        return new EngineFootprint().measure(root);
+    }
+
+    public long measure(Object root) {
+        long size = 0L;
+        int objects = 0;
+        this.pending.push(root);
+        while (!this.pending.isEmpty() && objects < MAX_OBJECTS) {
+            Object object = this.pending.pop();
+            Layout layout = LAYOUTS.get(object.getClass());
+            if (layout.ignored || !this.visited.add(object)) {
+                continue;
+            }
+            objects++;
+            if (layout.indexScale == 0) {
+                size += layout.size;
+                if (layout.walked) {
+                    for (long offset : layout.referenceOffsets) {
+                        this.push(UNSAFE.getReference(object, offset));
+                    }
+                }
+            } else {
+                int length = Array.getLength(object);
+                size += align(layout.size + (long) length * layout.indexScale);
+                if (layout.walked) {
+                    for (int i = 0; i < length; i++) {
+                        this.push(UNSAFE.getReference(object, layout.size + (long) i * layout.indexScale));
+                    }
+                }
+            }
+        }
+        this.pending.clear();
+        return size;
+    }
+
+    private void push(Object object) {
+        if (object != null) {
+            this.pending.push(object);
+        }
+    }
+
+    private static long align(long size) {
+        return (size + 7L) & ~7L;
+    }
+
+    private static boolean startsWithAny(String name, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Probe {
+        byte value;
+    }
+
+    private static class Layout {
+        final boolean ignored;
+        final boolean walked;
+        final long size;
+        final int indexScale;
+        final long[] referenceOffsets;
+
+        Layout(Class<?> type) {
+            Class<?> elementType = type;
+            while (elementType.isArray()) {
+                elementType = elementType.getComponentType();
+            }
+            String name = elementType.getName();
+            this.ignored = type == Class.class || type == Module.class || type == ThreadGroup.class || ClassLoader.class.isAssignableFrom(type) || Thread.class.isAssignableFrom(type) || IGNORED_CLASSES.contains(type.getName());
+            // Multidimensional primitive arrays still hold references to their rows
+            this.walked = elementType.isPrimitive() ? type.isArray() && type.getComponentType().isArray() : startsWithAny(name, WALKED_PACKAGES) && !startsWithAny(name, SKIPPED_PACKAGES);
+            if (type.isArray()) {
+                this.size = UNSAFE.arrayBaseOffset(type);
+                this.indexScale = UNSAFE.arrayIndexScale(type);
+                this.referenceOffsets = null;
+            } else {
+                long size = HEADER_SIZE;
+                LongStream.Builder referenceOffsets = LongStream.builder();
+                for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+                    for (Field field : clazz.getDeclaredFields()) {
+                        if (Modifier.isStatic(field.getModifiers())) {
+                            continue;
+                        }
+                        long offset = UNSAFE.objectFieldOffset(field);
+                        size = Math.max(size, offset + sizeOf(field.getType()));
+                        if (!field.getType().isPrimitive() && !(clazz == Reference.class && offset == REFERENT_OFFSET)) {
+                            referenceOffsets.add(offset);
+                        }
+                    }
+                }
+                this.size = align(size);
+                this.indexScale = 0;
+                this.referenceOffsets = referenceOffsets.build().toArray();
+            }
+        }
+
+        private static int sizeOf(Class<?> type) {
+            if (type == long.class || type == double.class) {
+                return 8;
+            } else if (type == int.class || type == float.class) {
+                return 4;
+            } else if (type == short.class || type == char.class) {
+                return 2;
+            } else if (type == byte.class || type == boolean.class) {
+                return 1;
+            }
+            return UNSAFE.arrayIndexScale(Object[].class);
+        }
+    }
+}
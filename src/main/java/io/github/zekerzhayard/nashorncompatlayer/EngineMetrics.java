@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.openjdk.nashorn.api.scripting.NashornScriptEngine;
+
+public class EngineMetrics implements EngineMetricsMBean {
+    final long id;
+    final WeakReference<NashornScriptEngine> engine;
+    final LatencyHistogram evalLatency = new LatencyHistogram();
+    final LatencyHistogram invokeLatency = new LatencyHistogram();
+    final LatencyHistogram compileLatency = new LatencyHistogram();
+    final LongAdder failures = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    // Held for reading while the engine is in use, eviction needs it for writing
+    private final ReadWriteLock usage = new ReentrantReadWriteLock();
+    // Only engines created by the legacy factory are attributed to a mod
+    volatile String owner;
+    volatile boolean evicted;
+    // Updated by every eval, invocation and compilation, compiled scripts included
+    volatile long lastActiveNanos = System.nanoTime();
+
+    EngineMetrics(long id, NashornScriptEngine engine) {
+        this.id = id;
+        this.engine = new WeakReference<>(engine);
+    }
+
+    public long getId() {
+        return this.id;
+    }
+
+    public void recordEval(long nanos) {
+        this.evalLatency.record(nanos);
+        this.lastActiveNanos = System.nanoTime();
+    }
+
+    public void recordInvoke(long nanos) {
+        this.invokeLatency.record(nanos);
+        this.lastActiveNanos = System.nanoTime();
+    }
+
+    // Fails once the engine has been evicted, the returned lock has to be released when the engine isn't used anymore.
+    public Lock beginUse() {
+        Lock lock = this.usage.readLock();
+        lock.lock();
+        if (this.evicted) {
+            lock.unlock();
+            throw new IllegalStateException(String.format("engine-%d has been evicted by the script engine quota of %s", this.id, this.owner));
+        }
+        return lock;
+    }
+
+    // Evicts only an idle engine, nested calls of a script running on this thread count as well.
+    public boolean evictIfIdle(Runnable eviction) {
+        Lock lock = this.usage.writeLock();
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (this.evicted) {
+                return false;
+            }
+            eviction.run();
+            this.evicted = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordCompile(long nanos) {
+        this.compileLatency.record(nanos);
+        this.lastActiveNanos = System.nanoTime();
+    }
+
+    public void recordFailure(boolean timeout) {
+        this.failures.increment();
+        if (timeout) {
+            this.timeouts.increment();
+        }
+    }
+
+    @Override
+    public String getOwner() {
+        return this.owner;
+    }
+
+    @Override
+    public boolean isEvicted() {
+        return this.evicted;
+    }
+
+    @Override
+    public long getIdleSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - this.lastActiveNanos);
+    }
+
+    @Override
+    public long estimateFootprintBytes() {
+        NashornScriptEngine engine = this.engine.get();
+        return engine == null ? 0L : EngineFootprint.estimate(engine);
+    }
+
+    @Override
+    public long getEvalCount() {
+        return this.evalLatency.getCount();
+    }
+
+    @Override
+    public long getInvokeCount() {
+        return this.invokeLatency.getCount();
+    }
+
+    @Override
+    public long getCompileCount() {
+        return this.compileLatency.getCount();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return this.failures.sum();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return this.timeouts.sum();
+    }
+
+    @Override
+    public long getEvalLatencyMeanMicros() {
+        return this.evalLatency.getMean(TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getEvalLatencyP99Micros() {
+        return this.evalLatency.getPercentile(99.0D, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getEvalLatencyMaxMicros() {
+        return this.evalLatency.getMax(TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getInvokeLatencyMeanMicros() {
+        return this.invokeLatency.getMean(TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getInvokeLatencyP99Micros() {
+        return this.invokeLatency.getPercentile(99.0D, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getInvokeLatencyMaxMicros() {
+        return this.invokeLatency.getMax(TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getCompileLatencyMeanMicros() {
+        return this.compileLatency.getMean(TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getCompileLatencyP99Micros() {
+        return this.compileLatency.getPercentile(99.0D, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getCompileLatencyMaxMicros() {
+        return this.compileLatency.getMax(TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("engine-%d (%s%s, idle %d s): eval %d (mean %d us, p99 %d us, max %d us), invoke %d (mean %d us, p99 %d us, max %d us), compile %d (mean %d us), failures %d, timeouts %d",
+            this.id, this.owner == null ? "untracked" : this.owner, this.evicted ? ", evicted" : "", this.getIdleSeconds(),
+            this.getEvalCount(), this.getEvalLatencyMeanMicros(), this.getEvalLatencyP99Micros(), this.getEvalLatencyMaxMicros(),
+            this.getInvokeCount(), this.getInvokeLatencyMeanMicros(), this.getInvokeLatencyP99Micros(), this.getInvokeLatencyMaxMicros(),
+            this.getCompileCount(), this.getCompileLatencyMeanMicros(),
+            this.getFailureCount(), this.getTimeoutCount());
+    }
+}
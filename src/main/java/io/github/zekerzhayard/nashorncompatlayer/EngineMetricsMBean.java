@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+public interface EngineMetricsMBean {
+    String getOwner();
+
+    boolean isEvicted();
+
+    long getIdleSeconds();
+
+    long estimateFootprintBytes();
+
+    long getEvalCount();
+
+    long getInvokeCount();
+
+    long getCompileCount();
+
+    long getFailureCount();
+
+    long getTimeoutCount();
+
+    long getEvalLatencyMeanMicros();
+
+    long getEvalLatencyP99Micros();
+
+    long getEvalLatencyMaxMicros();
+
+    long getInvokeLatencyMeanMicros();
+
+    long getInvokeLatencyP99Micros();
+
+    long getInvokeLatencyMaxMicros();
+
+    long getCompileLatencyMeanMicros();
+
+    long getCompileLatencyP99Micros();
+
+    long getCompileLatencyMaxMicros();
+}
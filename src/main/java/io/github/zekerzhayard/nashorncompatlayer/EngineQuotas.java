@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.script.ScriptEngine;
+
+import jdk.nashorn.api.scripting.NashornScriptEngine;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Per-mod quotas on the engines created by the legacy factory, both on their count and on their estimated footprint.
+// A mod is identified by the module or the jar of the first class on the stack outside of the runtime, Nashorn and this mod,
+// so the defaults can be overridden for a single mod with nashorncompatlayer.quota.<owner>.maxEngines and .maxBytes.
+// When a quota is exceeded the engine is refused, or with the evict policy the eldest idle engines of that mod are evicted until it fits.
+// Evicted engines drop their global and refuse any further script, engines running a script are never evicted and keep counting.
+// Work a mod hands over to another thread is charged to it by capturing findOwner() beforehand and passing it to create(String, Supplier).
+// Footprints are only walked when a byte quota is set, since the estimate is far from free.
+public class EngineQuotas {
+    private final static Logger LOGGER = LogManager.getLogger();
+    private final static String PROPERTY_PREFIX = "nashorncompatlayer.quota.";
+    private final static int MAX_ENGINES = Integer.getInteger(PROPERTY_PREFIX + "maxEngines", 0);
+    private final static long MAX_BYTES = Long.getLong(PROPERTY_PREFIX + "maxBytes", 0L);
+    private final static boolean EVICT = "evict".equals(System.getProperty(PROPERTY_PREFIX + "policy", "refuse"));
+    private final static String UNKNOWN_OWNER = "unknown";
+    private final static String[] PLATFORM_PACKAGES = {"java.", "javax.", "jdk.", "sun.", "org.openjdk.nashorn.", "io.github.zekerzhayard.nashorncompatlayer."};
+
+    private final static StackWalker STACK_WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+    private final static ClassValue<String> OWNERS = new ClassValue<>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+            if (type.getModule().isNamed()) {
+                return type.getModule().getName();
+            }
+            CodeSource codeSource = type.getProtectionDomain().getCodeSource();
+            URL location = codeSource == null ? null : codeSource.getLocation();
+            if (location == null) {
+                return type.getPackageName();
+            } else if ("modjar".equals(location.getProtocol())) {
+                return location.getHost();
+            }
+            String path = location.getPath();
+            path = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+    };
+    private final static Map<String, Object> LOCKS = new ConcurrentHashMap<>();
+    private final static LongAdder REFUSED_ENGINES = new LongAdder();
+    private final static LongAdder EVICTED_ENGINES = new LongAdder();
+    // The owner engines are being created for on this thread
+    private final static ThreadLocal<String> CREATING_OWNER = new ThreadLocal<>();
+
+    // Engines of one mod are created one at a time, so that concurrent callers can't overshoot the quota together.
+    public static ScriptEngine create(Supplier<ScriptEngine> factory) {
+        return create(findOwner(), factory);
+    }
+
+    // A factory going through create again, like the legacy factory does, is charged to the same owner and checked only once.
+    public static ScriptEngine create(String owner, Supplier<ScriptEngine> factory) {
+        String creatingOwner = CREATING_OWNER.get();
+        if (owner.equals(creatingOwner)) {
+            return setOwner(factory.get(), owner);
+        }
+        synchronized (LOCKS.computeIfAbsent(owner, k -> new Object())) {
+            enforce(owner);
+            CREATING_OWNER.set(owner);
+            try {
+                return setOwner(factory.get(), owner);
+            } finally {
+                CREATING_OWNER.set(creatingOwner);
+            }
+        }
+    }
+
+    private static ScriptEngine setOwner(ScriptEngine engine, String owner) {
+        if (engine instanceof NashornScriptEngine) {
+            ((NashornScriptEngine) engine).getMetrics().owner = owner;
+        }
+        return engine;
+    }
+
+    public static String findOwner() {
+        String creatingOwner = CREATING_OWNER.get();
+        if (creatingOwner != null) {
+            return creatingOwner;
+        }
+        return STACK_WALKER.walk(frames -> frames
+            .map(StackWalker.StackFrame::getDeclaringClass)
+            .filter(clazz -> !isPlatformClass(clazz.getName()))
+            .findFirst()
+        ).map(OWNERS::get).orElse(UNKNOWN_OWNER);
+    }
+
+    public static long getRefusedEngineCount() {
+        return REFUSED_ENGINES.sum();
+    }
+
+    public static long getEvictedEngineCount() {
+        return EVICTED_ENGINES.sum();
+    }
+
+    private static void enforce(String owner) {
+        int maxEngines = Integer.getInteger(PROPERTY_PREFIX + owner + ".maxEngines", MAX_ENGINES);
+        long maxBytes = Long.getLong(PROPERTY_PREFIX + owner + ".maxBytes", MAX_BYTES);
+        if (maxEngines <= 0 && maxBytes <= 0L) {
+            return;
+        }
+        List<org.openjdk.nashorn.api.scripting.NashornScriptEngine> engines = CompatLayerMetrics.getEngines(owner);
+        while (true) {
+            String exceeded = null;
+            if (maxEngines > 0 && engines.size() >= maxEngines) {
+                exceeded = String.format("%d engines, quota %d", engines.size(), maxEngines);
+            } else if (maxBytes > 0L) {
+                EngineFootprint footprint = new EngineFootprint();
+                long bytes = engines.stream().mapToLong(footprint::measure).sum();
+                if (bytes >= maxBytes) {
+                    exceeded = String.format("~%d bytes, quota %d", bytes, maxBytes);
+                }
+            }
+            if (exceeded == null) {
+                return;
+            } else if (!EVICT || !evictEldestIdle(owner, engines, exceeded)) {
+                REFUSED_ENGINES.increment();
+                throw new IllegalStateException(String.format("%s is over its script engine quota (%s)", owner, exceeded));
+            }
+        }
+    }
+
+    private static boolean evictEldestIdle(String owner, List<org.openjdk.nashorn.api.scripting.NashornScriptEngine> engines, String exceeded) {
+        for (Iterator<org.openjdk.nashorn.api.scripting.NashornScriptEngine> iterator = engines.iterator(); iterator.hasNext(); ) {
+            NashornScriptEngine engine = new NashornScriptEngine(iterator.next());
+            if (engine.evict()) {
+                iterator.remove();
+                LOGGER.warn("{} is over its script engine quota ({}), evicted engine-{}", owner, exceeded, engine.getMetrics().getId());
+                EVICTED_ENGINES.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPlatformClass(String name) {
+        for (String prefix : PLATFORM_PACKAGES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
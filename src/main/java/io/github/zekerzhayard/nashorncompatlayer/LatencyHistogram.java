@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// A lock-free latency histogram with power-of-two buckets, so recording costs a few atomic increments.
+// Percentiles are reported as the upper bound of the bucket they fall in.
+public class LatencyHistogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    public void record(long nanos) {
+        nanos = Math.max(nanos, 0L);
+        this.buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nanos) - (nanos == 0L ? 0 : 1));
+        this.count.increment();
+        this.sum.add(nanos);
+        this.max.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public long getMean(TimeUnit unit) {
+        long count = this.count.sum();
+        return count == 0L ? 0L : unit.convert(this.sum.sum() / count, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMax(TimeUnit unit) {
+        return unit.convert(this.max.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getPercentile(double percentile, TimeUnit unit) {
+        long[] snapshot = new long[Long.SIZE];
+        long total = 0L;
+        for (int i = 0; i < snapshot.length; i++) {
+            total += snapshot[i] = this.buckets.get(i);
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0D);
+        for (int i = 0; i < snapshot.length && total > 0L; i++) {
+            if ((rank -= snapshot[i]) <= 0L) {
+                return unit.convert(Math.min((2L << i) - 1L, this.max.get()), TimeUnit.NANOSECONDS);
+            }
+        }
+        return 0L;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import jdk.internal.misc.Unsafe;
+import org.openjdk.nashorn.api.scripting.NashornScriptEngine;
+import org.openjdk.nashorn.api.scripting.ScriptObjectMirror;
+
+// Resolves legacy jdk.nashorn names which are built at runtime, and so never seen by the remapper, to the classes of the nashorn module.
+// Both the renamed names and the loaded classes are cached, so a repeated lookup is a single hash hit
+// instead of a failed load of the legacy name followed by Nashorn's nested class retry.
+public class LegacyTypeResolver {
+    private final static String LEGACY_PACKAGE = "jdk.nashorn.";
+    private final static String NASHORN_PACKAGE = "org.openjdk.nashorn.";
+
+    // Replaces Java.type with a function which renames legacy names first, everything else is still done by Nashorn.
+    // The global is marked so that the prelude is installed only once.
+    private final static String PRELUDE_NAME = "__nashorncompatlayer_prelude__";
+    private final static String PRELUDE_SCRIPT = String.join("\n",
+        "(function (mapName) {",
+        "    var type = Java.type;",
+        "    Java.type = function (name) { return type(mapName.apply(String(name))); };",
+        "    Object.defineProperty(this, '" + PRELUDE_NAME + "', { value: true });",
+        "})"
+    );
+
+    private final static Map<String, String> NAMES = new ConcurrentHashMap<>();
+    private final static Map<String, Class<?>> CLASSES = new ConcurrentHashMap<>();
+
+    public static boolean isLegacyName(String name) {
+        return name.contains(LEGACY_PACKAGE) && !name.contains(NASHORN_PACKAGE);
+    }
+
+    // Works for binary names as well as array names like "[Ljdk.nashorn.api.scripting.JSObject;".
+    public static String mapName(String name) {
+        if (!isLegacyName(name)) {
+            return name;
+        }
+        return NAMES.computeIfAbsent(name, n -> n.replace(LEGACY_PACKAGE, NASHORN_PACKAGE));
+    }
+
+    public static Class<?> forName(String name) throws ClassNotFoundException {
+        return forName(name, true, ScriptObjectMirror.class.getClassLoader());
+    }
+
+    // The class loader is only used for non-legacy names, legacy ones always come from the nashorn module.
+    public static Class<?> forName(String name, boolean initialize, ClassLoader loader) throws ClassNotFoundException {
+        if (!isLegacyName(name)) {
+            return Class.forName(name, initialize, loader);
+        }
+        Class<?> clazz = CLASSES.get(name);
+        if (clazz == null) {
+            clazz = Class.forName(mapName(name), false, ScriptObjectMirror.class.getClassLoader());
+            CLASSES.putIfAbsent(name, clazz);
+        }
+        if (initialize) {
+            Unsafe.getUnsafe().ensureClassInitialized(clazz);
+        }
+        return clazz;
+    }
+
+    public static void installPrelude(NashornScriptEngine engine) {
+        installPrelude(CheckedLambdaUtils.wrapSupplier(() -> NashornInternals.getGlobal(engine, engine.getContext())));
+    }
+
+    public static void installPrelude(ScriptObjectMirror global) {
+        if (!global.hasMember(PRELUDE_NAME)) {
+            ((ScriptObjectMirror) global.eval(PRELUDE_SCRIPT)).call(global, (Function<String, String>) LegacyTypeResolver::mapName);
+        }
+    }
+}
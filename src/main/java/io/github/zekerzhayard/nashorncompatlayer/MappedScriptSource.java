@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+import jdk.internal.misc.Unsafe;
+import org.openjdk.nashorn.api.scripting.NashornScriptEngine;
+
+// Script files are mapped read-only and decoded straight into the char array backing a Nashorn Source.
+// Sources are shared by every engine loading the same unchanged file for as long as any of them still holds on to it.
+public class MappedScriptSource {
+    private final static Class<?> SOURCE = NashornInternals.findNashornClass("org.openjdk.nashorn.internal.runtime.Source");
+    private final static MethodHandle SOURCE_FOR = NashornInternals.findStatic(SOURCE, "sourceFor", MethodType.methodType(SOURCE, String.class, char[].class));
+    private final static MethodHandle ENGINE_EVAL_IMPL = NashornInternals.findVirtual(NashornScriptEngine.class, "evalImpl", MethodType.methodType(Object.class, SOURCE, ScriptContext.class));
+    private final static MethodHandle ENGINE_AS_COMPILED_SCRIPT = NashornInternals.findVirtual(NashornScriptEngine.class, "asCompiledScript", MethodType.methodType(CompiledScript.class, SOURCE));
+
+    private final static ConcurrentHashMap<Key, SourceReference> SOURCES = new ConcurrentHashMap<>();
+    private final static ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+
+    public static Object eval(NashornScriptEngine engine, Path path, ScriptContext ctxt, boolean checkpointed) throws ScriptException {
+        Object source = getSource(path, checkpointed);
+        try {
+            return ENGINE_EVAL_IMPL.invoke(engine, source, ctxt);
+        } catch (RuntimeException | Error | ScriptException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    public static CompiledScript compile(NashornScriptEngine engine, Path path, boolean checkpointed) throws ScriptException {
+        return compileSource(engine, getSource(path, checkpointed));
+    }
+
+    // Compiles a script held in memory under the given name, which the script engine API only takes from the engine's context.
+    public static CompiledScript compile(NashornScriptEngine engine, String scriptName, char[] chars) throws ScriptException {
+        try {
+            return compileSource(engine, SOURCE_FOR.invoke(scriptName, chars));
+        } catch (RuntimeException | Error | ScriptException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    private static CompiledScript compileSource(NashornScriptEngine engine, Object source) throws ScriptException {
+        try {
+            return (CompiledScript) ENGINE_AS_COMPILED_SCRIPT.invoke(engine, source);
+        } catch (RuntimeException | Error | ScriptException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    public static int getCachedSourceCount() {
+        expungeStaleSources();
+        return SOURCES.size();
+    }
+
+    // Sources with watchdog checkpoints are cached apart from the plain ones.
+    private static Object getSource(Path path, boolean checkpointed) throws ScriptException {
+        expungeStaleSources();
+        try {
+            path = path.toAbsolutePath().normalize();
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            Key key = new Key(path, attributes.lastModifiedTime().toMillis(), attributes.size(), checkpointed);
+            SourceReference reference = SOURCES.get(key);
+            Object source = reference == null ? null : reference.get();
+            if (source == null) {
+                char[] chars = decode(path);
+                source = SOURCE_FOR.invoke(path.toString(), checkpointed ? ScriptCheckpoints.instrument(chars) : chars);
+                SourceReference newReference = new SourceReference(key, source);
+                // Another thread may have loaded the same file in the meantime, prefer its source so that only one copy survives.
+                reference = SOURCES.merge(key, newReference, (oldValue, value) -> oldValue.get() == null ? value : oldValue);
+                source = Objects.requireNonNullElse(reference.get(), source);
+            }
+            return source;
+        } catch (IOException e) {
+            ScriptException se = new ScriptException(e.toString(), path.toString(), -1);
+            se.initCause(e);
+            throw se;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    private static char[] decode(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+        }
+        try {
+            CharBuffer chars = StandardCharsets.UTF_8.newDecoder().decode(buffer);
+            int offset = chars.hasRemaining() && chars.get(0) == '\uFEFF' ? 1 : 0;
+            char[] array = chars.array();
+            // Pure ASCII files decode into an exactly sized array, which can then be used without another copy.
+            if (offset == 0 && chars.arrayOffset() == 0 && chars.limit() == array.length) {
+                return array;
+            }
+            return Arrays.copyOfRange(array, chars.arrayOffset() + offset, chars.arrayOffset() + chars.limit());
+        } finally {
+            // Unmap right away instead of waiting for the GC, otherwise the file stays locked on Windows.
+            Unsafe.getUnsafe().invokeCleaner(buffer);
+        }
+    }
+
+    private static void expungeStaleSources() {
+        SourceReference reference;
+        while ((reference = (SourceReference) QUEUE.poll()) != null) {
+            SOURCES.remove(reference.key, reference);
+        }
+    }
+
+    private static class SourceReference extends WeakReference<Object> {
+        private final Key key;
+
+        private SourceReference(Key key, Object source) {
+            super(source, QUEUE);
+            this.key = key;
+        }
+    }
+
+    private static class Key {
+        private final Path path;
+        private final long lastModified;
+        private final long size;
+        private final boolean checkpointed;
+
+        private Key(Path path, long lastModified, long size, boolean checkpointed) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.checkpointed = checkpointed;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return this.lastModified == key.lastModified && this.size == key.size && this.checkpointed == key.checkpointed && this.path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.path, this.lastModified, this.size, this.checkpointed);
+        }
+    }
+}
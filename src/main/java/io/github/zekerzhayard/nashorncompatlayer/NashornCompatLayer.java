@@ -29,8 +29,10 @@ public class NashornCompatLayer {
 
     public static ScriptEngine convertScriptEngine(ScriptEngine engine) {
         if (engine instanceof org.openjdk.nashorn.api.scripting.NashornScriptEngine) {
+            CompatLayerMetrics.recordWrapperConversion();
             return new NashornScriptEngine((org.openjdk.nashorn.api.scripting.NashornScriptEngine) engine);
         } else if (engine instanceof NashornScriptEngine) {
+            CompatLayerMetrics.recordWrapperConversion();
             return ((NashornScriptEngine) engine).instance;
         }
         return engine;
@@ -38,8 +40,10 @@ public class NashornCompatLayer {
 
     public static Object convertScriptObjectMirror(Object object) {
         if (object instanceof org.openjdk.nashorn.api.scripting.ScriptObjectMirror) {
+            CompatLayerMetrics.recordWrapperConversion();
             return new ScriptObjectMirror((org.openjdk.nashorn.api.scripting.ScriptObjectMirror) object);
         } else if (object instanceof ScriptObjectMirror) {
+            CompatLayerMetrics.recordWrapperConversion();
             return ((ScriptObjectMirror) object).instance;
         }
         return object;
@@ -151,12 +151,12 @@ public class NashornCompatLayerEntrance implements ITransformationService {
 
     @Override
     public void initialize(@Nonnull IEnvironment environment) {
-
+        ScriptProfiler.startFromProperties();
     }
 
     @Override
     public void beginScanning(@Nonnull IEnvironment environment) {
-
+        ScriptWarmup.start();
     }
 
     // Forge uses asm Opcodes.class to locate the libraries folder, but this mod bundles new asm libraries,
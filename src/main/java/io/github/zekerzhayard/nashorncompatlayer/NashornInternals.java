@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+import java.util.Objects;
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+import jdk.internal.misc.Unsafe;
+import org.openjdk.nashorn.api.scripting.NashornException;
+import org.openjdk.nashorn.api.scripting.NashornScriptEngine;
+import org.openjdk.nashorn.api.scripting.ScriptObjectMirror;
+
+// Nashorn doesn't export its runtime packages, so all internal members are accessed through method handles.
+public class NashornInternals {
+    final static MethodHandles.Lookup IMPL_LOOKUP = CheckedLambdaUtils.wrapBiFunction(
+        Unsafe.getUnsafe(),
+        CheckedLambdaUtils.wrapSupplier(() -> MethodHandles.Lookup.class.getDeclaredField("IMPL_LOOKUP")),
+        (unsafe, field) -> (MethodHandles.Lookup) unsafe.getReference(unsafe.staticFieldBase(field), unsafe.staticFieldOffset(field))
+    );
+
+    final static Class<?> SCRIPT_OBJECT = findNashornClass("org.openjdk.nashorn.internal.runtime.ScriptObject");
+    final static Class<?> GLOBAL = findNashornClass("org.openjdk.nashorn.internal.objects.Global");
+    final static Class<?> CONTEXT = findNashornClass("org.openjdk.nashorn.internal.runtime.Context");
+
+    final static MethodHandle MIRROR_GET_SCRIPT_OBJECT = findVirtual(ScriptObjectMirror.class, "getScriptObject", MethodType.methodType(SCRIPT_OBJECT));
+    final static MethodHandle MIRROR_GET_HOME_GLOBAL = findVirtual(ScriptObjectMirror.class, "getHomeGlobal", MethodType.methodType(GLOBAL));
+    private final static MethodHandle MIRROR_GET_CALL_SITE_FLAGS = findVirtual(ScriptObjectMirror.class, "getCallSiteFlags", MethodType.methodType(int.class));
+    private final static MethodHandle MIRROR_WRAP_LIKE_ME = findVirtual(ScriptObjectMirror.class, "wrapLikeMe", MethodType.methodType(Object.class, Object.class));
+    private final static MethodHandle MIRROR_WRAP_LIKE_ME_WITH_GLOBAL = findVirtual(ScriptObjectMirror.class, "wrapLikeMe", MethodType.methodType(Object.class, Object.class, Object.class));
+    private final static MethodHandle MIRROR_STRICT = CheckedLambdaUtils.wrapSupplier(() -> IMPL_LOOKUP.findGetter(ScriptObjectMirror.class, "strict", boolean.class));
+    private final static MethodHandle EXCEPTION_INIT_ECMA_ERROR = findVirtual(NashornException.class, "initEcmaError", MethodType.methodType(NashornException.class, SCRIPT_OBJECT));
+    final static MethodHandle CONTEXT_GET_GLOBAL = findStatic(CONTEXT, "getGlobal", MethodType.methodType(GLOBAL));
+    final static MethodHandle CONTEXT_SET_GLOBAL = findStatic(CONTEXT, "setGlobal", MethodType.methodType(void.class, GLOBAL));
+    final static MethodHandle SCRIPT_OBJECT_GET = findVirtual(SCRIPT_OBJECT, "get", MethodType.methodType(Object.class, Object.class));
+    final static MethodHandle SCRIPT_OBJECT_GET_INDEX = findVirtual(SCRIPT_OBJECT, "get", MethodType.methodType(Object.class, int.class));
+    final static MethodHandle SCRIPT_OBJECT_PUT = findVirtual(SCRIPT_OBJECT, "put", MethodType.methodType(Object.class, Object.class, Object.class, boolean.class));
+    final static MethodHandle SCRIPT_OBJECT_SET_INDEX = findVirtual(SCRIPT_OBJECT, "set", MethodType.methodType(void.class, int.class, Object.class, int.class));
+    private final static long ENGINE_GLOBAL_OFFSET = Unsafe.getUnsafe().objectFieldOffset(NashornScriptEngine.class, "global");
+
+    static Class<?> findNashornClass(String name) {
+        return CheckedLambdaUtils.wrapSupplier(() -> Class.forName(name, false, ScriptObjectMirror.class.getClassLoader()));
+    }
+
+    // All handles are erased to Object so that callers never link against the internal classes.
+    static MethodHandle findVirtual(Class<?> clazz, String name, MethodType type) {
+        return CheckedLambdaUtils.wrapSupplier(() -> IMPL_LOOKUP.findVirtual(clazz, name, type).asType(type.insertParameterTypes(0, clazz).erase()));
+    }
+
+    static MethodHandle findStatic(Class<?> clazz, String name, MethodType type) {
+        return CheckedLambdaUtils.wrapSupplier(() -> IMPL_LOOKUP.findStatic(clazz, name, type).asType(type.erase()));
+    }
+
+    // Batched member access, the script context is only entered once for each batch.
+
+    public static Object[] getMembers(ScriptObjectMirror mirror, String... names) {
+        return inGlobal(mirror, (sobj, global, oldGlobal) -> {
+            Object[] values = new Object[names.length];
+            for (int i = 0; i < names.length; i++) {
+                values[i] = SCRIPT_OBJECT_GET.invoke(sobj, (Object) Objects.requireNonNull(names[i]));
+            }
+            return wrapAll(mirror, values);
+        });
+    }
+
+    public static void setMembers(ScriptObjectMirror mirror, Map<String, ?> members) {
+        inGlobal(mirror, (sobj, global, oldGlobal) -> {
+            boolean strict = (boolean) MIRROR_STRICT.invoke(mirror);
+            for (Map.Entry<String, ?> entry : members.entrySet()) {
+                SCRIPT_OBJECT_PUT.invoke(sobj, (Object) Objects.requireNonNull(entry.getKey()), unwrap(mirror, entry.getValue(), global, oldGlobal), strict);
+            }
+            return null;
+        });
+    }
+
+    public static Object[] getSlots(ScriptObjectMirror mirror, int from, int to) {
+        if (from > to) {
+            throw new IllegalArgumentException(String.format("from(%d) > to(%d)", from, to));
+        }
+        return inGlobal(mirror, (sobj, global, oldGlobal) -> {
+            Object[] values = new Object[to - from];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = SCRIPT_OBJECT_GET_INDEX.invoke(sobj, from + i);
+            }
+            return wrapAll(mirror, values);
+        });
+    }
+
+    public static void setSlots(ScriptObjectMirror mirror, int from, Object... values) {
+        inGlobal(mirror, (sobj, global, oldGlobal) -> {
+            int flags = (int) MIRROR_GET_CALL_SITE_FLAGS.invoke(mirror);
+            for (int i = 0; i < values.length; i++) {
+                SCRIPT_OBJECT_SET_INDEX.invoke(sobj, from + i, unwrap(mirror, values[i], global, oldGlobal), flags);
+            }
+            return null;
+        });
+    }
+
+    // Engine scopes which are neither a global nor bound to one get their global from the engine on their first evaluation,
+    // so evaluating this the same way as a script finds the global it will run in.
+    public static ScriptObjectMirror getGlobal(NashornScriptEngine engine, ScriptContext ctxt) throws ScriptException {
+        ScriptObjectMirror global = findGlobal(ctxt.getBindings(ScriptContext.ENGINE_SCOPE));
+        return global != null ? global : (ScriptObjectMirror) engine.eval("this", ctxt);
+    }
+
+    public static ScriptObjectMirror getGlobal(NashornScriptEngine engine, Bindings bindings) throws ScriptException {
+        ScriptObjectMirror global = findGlobal(bindings);
+        return global != null ? global : (ScriptObjectMirror) engine.eval("this", bindings);
+    }
+
+    private static ScriptObjectMirror findGlobal(Bindings bindings) {
+        Object global = bindings instanceof ScriptObjectMirror ? bindings : bindings.get(NashornScriptEngine.NASHORN_GLOBAL);
+        return global instanceof ScriptObjectMirror && GLOBAL.isInstance(CheckedLambdaUtils.wrapSupplier(() -> MIRROR_GET_SCRIPT_OBJECT.invoke(global))) ? (ScriptObjectMirror) global : null;
+    }
+
+    // The engine keeps its default global in a final field, which would otherwise outlive the replaced engine scope.
+    // Only the references are dropped, an evicted engine refuses any further work, see EngineMetrics.evictIfIdle.
+    public static void resetGlobal(NashornScriptEngine engine) {
+        engine.setBindings(new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+        Unsafe.getUnsafe().putReferenceRelease(engine, ENGINE_GLOBAL_OFFSET, null);
+    }
+
+    private static Object[] wrapAll(ScriptObjectMirror mirror, Object[] values) throws Throwable {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = NashornCompatLayer.convertScriptObjectMirror(MIRROR_WRAP_LIKE_ME.invoke(mirror, values[i]));
+        }
+        return values;
+    }
+
+    private static Object unwrap(ScriptObjectMirror mirror, Object value, Object global, Object oldGlobal) throws Throwable {
+        value = NashornCompatLayer.convertScriptObjectMirror(value);
+        if (oldGlobal != global) {
+            value = MIRROR_WRAP_LIKE_ME_WITH_GLOBAL.invoke(mirror, value, oldGlobal);
+        }
+        return ScriptObjectMirror.unwrap(value, global);
+    }
+
+    private static <R> R inGlobal(ScriptObjectMirror mirror, GlobalFunction<R> function) {
+        Object sobj = CheckedLambdaUtils.wrapSupplier(() -> MIRROR_GET_SCRIPT_OBJECT.invoke(mirror));
+        Object global = CheckedLambdaUtils.wrapSupplier(() -> MIRROR_GET_HOME_GLOBAL.invoke(mirror));
+        return inGlobal(global, oldGlobal -> function.apply(sobj, global, oldGlobal));
+    }
+
+    // Runs the call with the given global as the current one, a null global leaves the current one in place.
+    // Script errors get the global they are thrown in, so their ECMA error object is available to Java callers.
+    static <R> R inGlobal(Object global, GlobalCall<R> call) {
+        Object oldGlobal = null;
+        try {
+            oldGlobal = CONTEXT_GET_GLOBAL.invoke();
+            boolean globalChanged = global != null && oldGlobal != global;
+            if (globalChanged) {
+                CONTEXT_SET_GLOBAL.invoke(global);
+            }
+            try {
+                return call.call(oldGlobal);
+            } finally {
+                if (globalChanged) {
+                    CONTEXT_SET_GLOBAL.invoke(oldGlobal);
+                }
+            }
+        } catch (NashornException ne) {
+            Object errorGlobal = global != null ? global : oldGlobal;
+            if (errorGlobal == null) {
+                throw ne;
+            }
+            throw CheckedLambdaUtils.wrapBiFunction(ne, errorGlobal, (e, g) -> (NashornException) EXCEPTION_INIT_ECMA_ERROR.invoke(e, g));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    private interface GlobalFunction<R> {
+        R apply(Object sobj, Object global, Object oldGlobal) throws Throwable;
+    }
+
+    interface GlobalCall<R> {
+        R call(Object oldGlobal) throws Throwable;
+    }
+}
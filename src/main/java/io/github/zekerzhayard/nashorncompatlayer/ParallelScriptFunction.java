@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.openjdk.nashorn.api.scripting.NashornException;
+import org.openjdk.nashorn.api.scripting.NashornScriptEngine;
+import org.openjdk.nashorn.api.scripting.ScriptObjectMirror;
+
+// Runs one script function over many items on a fork/join pool.
+// Nashorn globals must not be used by two threads at once, so every batch checks out an engine which has evaluated the script,
+// and hands it back when done. Engines aren't bound to threads, so there are only as many as batches have ever run at once,
+// and pool threads which retire while idle don't leave theirs behind. Engines are kept for as long as this function is open.
+// The function is called like an Array.prototype.map callback, with the item and its index, and the results keep the order of the items.
+// Items and results cross engines, so they should be plain Java objects rather than script objects of another engine.
+public class ParallelScriptFunction implements AutoCloseable {
+    // Below this many items a task is not split any further.
+    private final static int MIN_BATCH_SIZE = Integer.getInteger("nashorncompatlayer.parallel.minBatchSize", 64);
+
+    private final Supplier<ScriptEngine> engineSupplier;
+    private final String script;
+    private final String functionName;
+    private final ForkJoinPool pool;
+    // The most recently used engine is checked out first, as it is most likely to be compiled and in cache
+    private final Deque<ScriptObjectMirror> functions = new ConcurrentLinkedDeque<>();
+
+    public ParallelScriptFunction(Supplier<ScriptEngine> engineSupplier, String script, String functionName, int parallelism) {
+        this.engineSupplier = engineSupplier;
+        this.script = script;
+        this.functionName = functionName;
+        this.pool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("NashornCompatLayer Parallel-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    public int getParallelism() {
+        return this.pool.getParallelism();
+    }
+
+    // Creates an engine for each worker up front, instead of on the first call to map.
+    public void warmUp() throws ScriptException {
+        List<ForkJoinTask<ScriptObjectMirror>> tasks = new ArrayList<>();
+        for (int i = this.functions.size(); i < this.getParallelism(); i++) {
+            tasks.add(this.pool.submit(this::createFunction));
+        }
+        try {
+            for (ForkJoinTask<ScriptObjectMirror> task : tasks) {
+                this.functions.push(task.join());
+            }
+        } catch (RuntimeException e) {
+            throw unwrap(e);
+        }
+    }
+
+    public List<Object> map(Collection<?> items) throws ScriptException {
+        return this.map(items.toArray());
+    }
+
+    public List<Object> map(Spliterator<?> items) throws ScriptException {
+        List<Object> list = items.hasCharacteristics(Spliterator.SIZED) ? new ArrayList<>((int) items.estimateSize()) : new ArrayList<>();
+        items.forEachRemaining(list::add);
+        return this.map(list.toArray());
+    }
+
+    private List<Object> map(Object[] items) throws ScriptException {
+        Object[] results = new Object[items.length];
+        this.invokeAll(items, results);
+        return Arrays.asList(results);
+    }
+
+    private void invokeAll(Object[] items, Object[] results) throws ScriptException {
+        try {
+            this.pool.invoke(new Batch(items, results, 0, items.length));
+        } catch (RuntimeException e) {
+            throw unwrap(e);
+        }
+    }
+
+    // Fork/join may rethrow a copy of the exception, so look through all causes.
+    private static ScriptException unwrap(RuntimeException e) throws ScriptException {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ScriptException) {
+                throw (ScriptException) cause;
+            }
+        }
+        throw e;
+    }
+
+    private ScriptObjectMirror createFunction() throws ScriptException {
+        ScriptEngine engine = this.engineSupplier.get();
+        if (engine instanceof jdk.nashorn.api.scripting.NashornScriptEngine) {
+            engine = ((jdk.nashorn.api.scripting.NashornScriptEngine) engine).instance;
+        } else if (!(engine instanceof NashornScriptEngine)) {
+            throw new IllegalStateException("Not a Nashorn engine: " + engine);
+        }
+        engine.eval(this.script);
+        Object value = engine.get(this.functionName);
+        if (!(value instanceof ScriptObjectMirror) || !((ScriptObjectMirror) value).isFunction()) {
+            throw new ScriptException(this.functionName + " is not a function");
+        }
+        return (ScriptObjectMirror) value;
+    }
+
+    @Override
+    public void close() {
+        this.pool.shutdownNow();
+        this.functions.clear();
+    }
+
+    private class Batch extends RecursiveAction {
+        private final static long serialVersionUID = 1L;
+
+        private final Object[] items;
+        private final Object[] results;
+        private final int from;
+        private final int to;
+
+        private Batch(Object[] items, Object[] results, int from, int to) {
+            this.items = items;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > MIN_BATCH_SIZE) {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new Batch(this.items, this.results, this.from, middle), new Batch(this.items, this.results, middle, this.to));
+                return;
+            }
+            ScriptObjectMirror function = ParallelScriptFunction.this.functions.poll();
+            try {
+                if (function == null) {
+                    function = ParallelScriptFunction.this.createFunction();
+                }
+                for (int i = this.from; i < this.to; i++) {
+                    this.results[i] = NashornCompatLayer.convertScriptObjectMirror(function.call(null, NashornCompatLayer.convertScriptObjectMirror(this.items[i]), i));
+                }
+            } catch (ScriptException e) {
+                throw new ScriptFunctionException(e);
+            } catch (NashornException e) {
+                ScriptException se = new ScriptException(e.getMessage(), e.getFileName(), e.getLineNumber(), e.getColumnNumber());
+                se.initCause(e);
+                throw new ScriptFunctionException(se);
+            } finally {
+                if (function != null) {
+                    ParallelScriptFunction.this.functions.push(function);
+                }
+            }
+        }
+    }
+
+    private static class ScriptFunctionException extends RuntimeException {
+        private final static long serialVersionUID = 1L;
+
+        private ScriptFunctionException(ScriptException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.nashorn.api.scripting.NashornException;
+import org.openjdk.nashorn.api.scripting.ScriptObjectMirror;
+import org.openjdk.nashorn.api.tree.BlockTree;
+import org.openjdk.nashorn.api.tree.DoWhileLoopTree;
+import org.openjdk.nashorn.api.tree.ExpressionStatementTree;
+import org.openjdk.nashorn.api.tree.ForInLoopTree;
+import org.openjdk.nashorn.api.tree.ForLoopTree;
+import org.openjdk.nashorn.api.tree.ForOfLoopTree;
+import org.openjdk.nashorn.api.tree.FunctionDeclarationTree;
+import org.openjdk.nashorn.api.tree.FunctionExpressionTree;
+import org.openjdk.nashorn.api.tree.LiteralTree;
+import org.openjdk.nashorn.api.tree.Parser;
+import org.openjdk.nashorn.api.tree.SimpleTreeVisitorES6;
+import org.openjdk.nashorn.api.tree.StatementTree;
+import org.openjdk.nashorn.api.tree.Tree;
+import org.openjdk.nashorn.api.tree.WhileLoopTree;
+
+// Rewrites script sources so that every loop iteration and every function entry passes a watchdog checkpoint,
+// which is how ScriptWatchdog cancels an overrunning script without stopping its thread.
+// The checkpoint object is a read-only global which is installed into a global before code is evaluated in it.
+// Checkpoints are inserted without line breaks, so line numbers are kept, but columns after a checkpoint are shifted
+// and Function.prototype.toString shows them. Sources which don't parse are left alone for the engine to report the error.
+// Since every source is parsed once more, only scripts evaluated or compiled under a time budget get checkpoints.
+// nashorncompatlayer.watchdog.checkpoints=false turns them off completely, overrunning scripts are then only interrupted.
+public class ScriptCheckpoints {
+    final static String NAME = "__nashorncompatlayer_watchdog__";
+    private final static String CHECKPOINT = NAME + ".check();";
+    private final static boolean ENABLED = Boolean.parseBoolean(System.getProperty("nashorncompatlayer.watchdog.checkpoints", "true"));
+    private final static int MAX_CACHED_SOURCES = 256;
+    private final static int MAX_CACHED_LENGTH = 16384;
+    private final static String INSTALL_SCRIPT = "(function (checkpoint) { Object.defineProperty(this, '" + NAME + "', { value: checkpoint }); })";
+
+    private final static Parser ES5_PARSER = Parser.create();
+    private final static Parser ES6_PARSER = Parser.create("--language=es6");
+    private final static ScriptWatchdog.Checkpoint CHECKPOINT_OBJECT = new ScriptWatchdog.Checkpoint();
+    private final static Map<String, String> INSTRUMENTED = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return this.size() > MAX_CACHED_SOURCES;
+        }
+    });
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public static String instrument(String source) {
+        if (!ENABLED) {
+            return source;
+        }
+        // Whole script files aren't worth keeping around for a cache hit
+        if (source.length() > MAX_CACHED_LENGTH) {
+            return insertCheckpoints(source);
+        }
+        // Parsed outside of the lock, a source instrumented twice by racing threads is cheaper than serializing all evals.
+        String instrumented = INSTRUMENTED.get(source);
+        if (instrumented == null) {
+            instrumented = insertCheckpoints(source);
+            INSTRUMENTED.put(source, instrumented);
+        }
+        return instrumented;
+    }
+
+    public static void install(ScriptObjectMirror global) {
+        if (ENABLED && !global.hasMember(NAME)) {
+            ((ScriptObjectMirror) global.eval(INSTALL_SCRIPT)).call(global, CHECKPOINT_OBJECT);
+        }
+    }
+
+    // Mapped script files are rewritten without a detour through String, only the parser reads them once more.
+    public static char[] instrument(char[] source) {
+        if (!ENABLED) {
+            return source;
+        }
+        List<Insertion> insertions = findInsertions(CharBuffer.wrap(source));
+        return insertions.isEmpty() ? source : insert(CharBuffer.wrap(source), insertions);
+    }
+
+    private static String insertCheckpoints(String source) {
+        List<Insertion> insertions = findInsertions(source);
+        return insertions.isEmpty() ? source : new String(insert(source, insertions));
+    }
+
+    private static Tree parse(Parser parser, CharSequence source) throws IOException {
+        if (source instanceof CharBuffer) {
+            return parser.parse("<checkpoints>", new CharArrayReader(((CharBuffer) source).array()), null);
+        }
+        return parser.parse("<checkpoints>", source.toString(), null);
+    }
+
+    private static List<Insertion> findInsertions(CharSequence source) {
+        List<Insertion> insertions = new ArrayList<>();
+        Tree tree;
+        try {
+            tree = parse(ES5_PARSER, source);
+        } catch (NashornException | IOException e) {
+            try {
+                tree = parse(ES6_PARSER, source);
+            } catch (NashornException | IOException e6) {
+                return insertions;
+            }
+        }
+        if (tree == null) {
+            return insertions;
+        }
+
+        tree.accept(new SimpleTreeVisitorES6<Void, List<Insertion>>() {
+            @Override
+            public Void visitForLoop(ForLoopTree node, List<Insertion> insertions) {
+                addLoopBody(source, node.getStatement(), insertions);
+                return super.visitForLoop(node, insertions);
+            }
+
+            @Override
+            public Void visitForInLoop(ForInLoopTree node, List<Insertion> insertions) {
+                addLoopBody(source, node.getStatement(), insertions);
+                return super.visitForInLoop(node, insertions);
+            }
+
+            @Override
+            public Void visitForOfLoop(ForOfLoopTree node, List<Insertion> insertions) {
+                addLoopBody(source, node.getStatement(), insertions);
+                return super.visitForOfLoop(node, insertions);
+            }
+
+            @Override
+            public Void visitWhileLoop(WhileLoopTree node, List<Insertion> insertions) {
+                addLoopBody(source, node.getStatement(), insertions);
+                return super.visitWhileLoop(node, insertions);
+            }
+
+            @Override
+            public Void visitDoWhileLoop(DoWhileLoopTree node, List<Insertion> insertions) {
+                addLoopBody(source, node.getStatement(), insertions);
+                return super.visitDoWhileLoop(node, insertions);
+            }
+
+            @Override
+            public Void visitFunctionDeclaration(FunctionDeclarationTree node, List<Insertion> insertions) {
+                addFunctionBody(source, node.getBody(), insertions);
+                return super.visitFunctionDeclaration(node, insertions);
+            }
+
+            @Override
+            public Void visitFunctionExpression(FunctionExpressionTree node, List<Insertion> insertions) {
+                // Arrow functions with an expression body can only loop through calls, which pass a checkpoint anyway.
+                if (node.getBody() instanceof BlockTree) {
+                    addFunctionBody(source, (BlockTree) node.getBody(), insertions);
+                }
+                return super.visitFunctionExpression(node, insertions);
+            }
+        }, insertions);
+        insertions.sort(Comparator.comparingInt(insertion -> insertion.position));
+        return insertions;
+    }
+
+    private static char[] insert(CharSequence source, List<Insertion> insertions) {
+        int length = source.length();
+        for (Insertion insertion : insertions) {
+            length += insertion.text.length();
+        }
+        char[] chars = new char[length];
+        int last = 0;
+        int position = 0;
+        for (Insertion insertion : insertions) {
+            position = copy(source, last, insertion.position, chars, position);
+            insertion.text.getChars(0, insertion.text.length(), chars, position);
+            position += insertion.text.length();
+            last = insertion.position;
+        }
+        copy(source, last, source.length(), chars, position);
+        return chars;
+    }
+
+    private static int copy(CharSequence source, int start, int end, char[] dst, int position) {
+        if (source instanceof String) {
+            ((String) source).getChars(start, end, dst, position);
+        } else {
+            System.arraycopy(((CharBuffer) source).array(), start, dst, position, end - start);
+        }
+        return position + end - start;
+    }
+
+    private static void addLoopBody(CharSequence source, StatementTree body, List<Insertion> insertions) {
+        int start = (int) body.getStartPosition();
+        if (body instanceof BlockTree && source.charAt(start) == '{') {
+            insertions.add(new Insertion(start + 1, CHECKPOINT));
+        } else {
+            // The positions of a single statement don't include its semicolon, which has to be moved into the new block.
+            insertions.add(new Insertion(start, "{" + CHECKPOINT));
+            insertions.add(new Insertion(skipSemicolon(source, (int) body.getEndPosition()), "}"));
+        }
+    }
+
+    // The checkpoint goes after the directive prologue, otherwise "use strict" would no longer be a directive.
+    private static void addFunctionBody(CharSequence source, BlockTree body, List<Insertion> insertions) {
+        int start = (int) body.getStartPosition();
+        if (source.charAt(start) != '{') {
+            return;
+        }
+        int position = start + 1;
+        for (StatementTree statement : body.getStatements()) {
+            if (!(statement instanceof ExpressionStatementTree) || !(((ExpressionStatementTree) statement).getExpression() instanceof LiteralTree)
+                || !(((LiteralTree) ((ExpressionStatementTree) statement).getExpression()).getValue() instanceof String)) {
+                break;
+            }
+            // The positions of a string literal don't include its quotes
+            position = skipSemicolon(source, (int) statement.getEndPosition() + 1);
+        }
+        insertions.add(new Insertion(position, CHECKPOINT));
+    }
+
+    private static int skipSemicolon(CharSequence source, int position) {
+        int length = source.length();
+        int i = position;
+        while (i < length) {
+            char c = source.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '/') {
+                while (i < length && source.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '*') {
+                i += 2;
+                while (i < length && !(source.charAt(i) == '*' && i + 1 < length && source.charAt(i + 1) == '/')) {
+                    i++;
+                }
+                i = Math.min(length, i + 2);
+            } else {
+                return c == ';' ? i + 1 : position;
+            }
+        }
+        return position;
+    }
+
+    private static class Insertion {
+        final int position;
+        final String text;
+
+        Insertion(int position, String text) {
+            this.position = position;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// An opt-in sampling profiler for scripts running in the engines of this mod.
+// Only threads which are inside an engine call are sampled, and only the script frames of them are kept,
+// so the output attributes CPU time to script functions instead of the generated Script$... classes.
+// The output is in the collapsed stack format which could be rendered by flamegraph.pl or speedscope.
+public class ScriptProfiler {
+    private final static Logger LOGGER = LogManager.getLogger();
+    private final static String OUTPUT_PROPERTY = "nashorncompatlayer.profiler.output";
+    private final static String INTERVAL_PROPERTY = "nashorncompatlayer.profiler.interval";
+    private final static int MAX_DEPTH = Integer.getInteger("nashorncompatlayer.profiler.maxDepth", 256);
+    private final static String NO_SCRIPT_FRAME = "[nashorn]";
+
+    private final static ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private final static Map<Thread, int[]> ACTIVE_THREADS = new ConcurrentHashMap<>();
+    private final static Map<String, LongAdder> STACKS = new ConcurrentHashMap<>();
+    private static volatile Thread sampler;
+
+    public static void startFromProperties() {
+        String output = System.getProperty(OUTPUT_PROPERTY);
+        if (output != null) {
+            start(Long.getLong(INTERVAL_PROPERTY, 10L), TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                stop();
+                try {
+                    dump(Paths.get(output));
+                } catch (UncheckedIOException e) {
+                    LOGGER.error("Unable to write the script profile to {}", output, e);
+                }
+            }, "NashornCompatLayer Profiler Dump"));
+        }
+    }
+
+    public static synchronized void start(long interval, TimeUnit unit) {
+        if (sampler != null) {
+            return;
+        }
+        long intervalNanos = unit.toNanos(interval);
+        sampler = new Thread(() -> {
+            while (sampler == Thread.currentThread()) {
+                sample();
+                try {
+                    TimeUnit.NANOSECONDS.sleep(intervalNanos);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }, "NashornCompatLayer Profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+        LOGGER.info("Script profiler started with a sampling interval of {} us", TimeUnit.NANOSECONDS.toMicros(intervalNanos));
+    }
+
+    public static synchronized void stop() {
+        if (sampler != null) {
+            sampler.interrupt();
+            sampler = null;
+        }
+    }
+
+    public static boolean isRunning() {
+        return sampler != null;
+    }
+
+    public static void reset() {
+        STACKS.clear();
+    }
+
+    public static void dump(Path output) {
+        List<String> lines = new ArrayList<>(STACKS.size());
+        STACKS.forEach((stack, count) -> lines.add(stack + " " + count.sum()));
+        try {
+            Files.write(output, lines);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Called around every engine call, nested calls on the same thread are counted.
+
+    public static boolean enter() {
+        if (sampler == null) {
+            return false;
+        }
+        ACTIVE_THREADS.computeIfAbsent(Thread.currentThread(), t -> new int[1])[0]++;
+        return true;
+    }
+
+    public static void exit(boolean entered) {
+        if (entered) {
+            ACTIVE_THREADS.computeIfPresent(Thread.currentThread(), (t, depth) -> --depth[0] == 0 ? null : depth);
+        }
+    }
+
+    private static void sample() {
+        long[] ids = ACTIVE_THREADS.keySet().stream().mapToLong(Thread::getId).toArray();
+        if (ids.length == 0) {
+            return;
+        }
+        for (ThreadInfo info : THREAD_MX_BEAN.getThreadInfo(ids, MAX_DEPTH)) {
+            if (info != null && info.getThreadState() == Thread.State.RUNNABLE) {
+                STACKS.computeIfAbsent(collapse(info.getStackTrace()), s -> new LongAdder()).increment();
+            }
+        }
+    }
+
+    private static String collapse(StackTraceElement[] stackTrace) {
+        StringBuilder stack = new StringBuilder();
+        boolean leaf = true;
+        // The stack trace begins with the innermost frame.
+        for (StackTraceElement element : stackTrace) {
+            if (ScriptWatchdog.isScriptFrame(element)) {
+                String frame = getFunctionName(element.getMethodName()) + " (" + element.getFileName() + (leaf ? ":" + element.getLineNumber() : "") + ")";
+                stack.insert(0, stack.length() == 0 ? frame : frame + ";");
+                leaf = false;
+            }
+        }
+        return stack.length() == 0 ? NO_SCRIPT_FRAME : stack.toString();
+    }
+
+    // Anonymous functions are named after their line numbers like "L:12" by nashorn, which are kept to tell them apart.
+    private static String getFunctionName(String methodName) {
+        return Objects.equals(methodName, ":program") ? "<program>" : methodName;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openjdk.nashorn.api.scripting.NashornScriptEngine;
+
+// Loads script files into a set of engines and recompiles them in the background when they change on disk.
+// A file is only read again when its modification time or size changes, and only recompiled when its content changes.
+// Recompiled scripts are swapped in by applyPending(), which should be called by the thread owning the engines
+// (e.g. between two ticks), so that no script is running while its functions are replaced.
+public class ScriptReloader implements Closeable {
+    private final static Logger LOGGER = LogManager.getLogger();
+    private final static long QUIET_PERIOD_MILLIS = 200L;
+
+    private final WatchService watchService;
+    private final Map<Path, WatchKey> directories = new ConcurrentHashMap<>();
+    private final Map<Path, ScriptFile> files = new ConcurrentHashMap<>();
+    private final List<ScriptEngine> engines = new CopyOnWriteArrayList<>();
+    private final Queue<ScriptFile> pending = new ConcurrentLinkedQueue<>();
+    private final Thread watcher;
+
+    public ScriptReloader() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.watcher = new Thread(this::watch, "NashornCompatLayer Script Reloader");
+        this.watcher.setDaemon(true);
+        this.watcher.start();
+    }
+
+    // Evaluates all loaded scripts in the engine, and keeps it updated from now on.
+    public void attach(ScriptEngine engine) throws ScriptException {
+        if (!(engine instanceof Compilable)) {
+            throw new IllegalArgumentException("Engine should be Compilable");
+        }
+        this.engines.add(engine);
+        for (ScriptFile file : this.files.values()) {
+            file.eval(engine);
+        }
+    }
+
+    public void detach(ScriptEngine engine) {
+        this.engines.remove(engine);
+    }
+
+    // Loads a script file into all attached engines immediately.
+    public void load(Path path) throws IOException, ScriptException {
+        Path file = path.toAbsolutePath().normalize();
+        if (this.files.containsKey(file)) {
+            return;
+        }
+        ScriptFile scriptFile = new ScriptFile(file);
+        scriptFile.refresh();
+        scriptFile.promote(scriptFile.compile(this.engines));
+        this.files.put(file, scriptFile);
+        this.directories.computeIfAbsent(file.getParent(), (CheckedLambdaUtils.CheckedFunction<Path, WatchKey>) dir -> dir.register(
+            this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+        for (ScriptEngine engine : this.engines) {
+            scriptFile.eval(engine);
+        }
+    }
+
+    // Swaps the recompiled scripts into all attached engines, returns the number of reloaded files.
+    // A script which fails in one of the engines is rolled back in all of them, the files after it stay pending.
+    public int applyPending() throws ScriptException {
+        int count = 0;
+        for (ScriptFile file; (file = this.pending.poll()) != null; ) {
+            try {
+                if (file.apply(List.copyOf(this.engines))) {
+                    count++;
+                    LOGGER.info("Reloaded script {}", file.path);
+                }
+            } catch (ScriptException | RuntimeException e) {
+                LOGGER.error("Unable to reload script {}, the previous version is kept", file.path, e);
+                throw e;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.watcher.interrupt();
+        this.watchService.close();
+    }
+
+    // Events are collected until the directory has been quiet for a moment, so a file which is still being written isn't compiled.
+    private void watch() {
+        Set<ScriptFile> changed = new LinkedHashSet<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = changed.isEmpty() ? this.watchService.take() : this.watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    changed.forEach(this::update);
+                    changed.clear();
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        changed.addAll(this.files.values());
+                    } else {
+                        Optional.ofNullable(this.files.get(((Path) key.watchable()).resolve((Path) event.context()))).ifPresent(changed::add);
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void update(ScriptFile file) {
+        try {
+            if (file.refresh()) {
+                file.compile(this.engines);
+                if (!this.pending.contains(file)) {
+                    this.pending.add(file);
+                }
+            }
+        } catch (IOException | ScriptException e) {
+            file.discard();
+            this.pending.remove(file);
+            LOGGER.error("Unable to reload script {}, the previous version is kept", file.path, e);
+        }
+    }
+
+    private static class ScriptFile {
+        private final Path path;
+        private FileTime lastModified;
+        private long size = -1L;
+        private long checksum;
+        private String source;
+        private volatile Version current;
+        private volatile Version next;
+
+        private ScriptFile(Path path) {
+            this.path = path;
+        }
+
+        // Returns true if the content has changed since the last refresh.
+        private synchronized boolean refresh() throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(this.path, BasicFileAttributes.class);
+            if (Objects.equals(attributes.lastModifiedTime(), this.lastModified) && attributes.size() == this.size) {
+                return false;
+            }
+            byte[] bytes = Files.readAllBytes(this.path);
+            CRC32C crc = new CRC32C();
+            crc.update(bytes);
+            this.lastModified = attributes.lastModifiedTime();
+            boolean changed = bytes.length != this.size || crc.getValue() != this.checksum;
+            this.size = bytes.length;
+            this.checksum = crc.getValue();
+            if (changed) {
+                this.source = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return changed;
+        }
+
+        // Compiles for all engines first, so a syntax error leaves the previous version untouched.
+        private synchronized Version compile(List<ScriptEngine> engines) throws ScriptException {
+            Version version = new Version(this.path.toString(), this.source);
+            for (ScriptEngine engine : engines) {
+                version.compile(engine);
+            }
+            return this.next = version;
+        }
+
+        private synchronized void discard() {
+            this.next = null;
+        }
+
+        // A newer version may have been compiled in the meantime, which is then pending again.
+        private synchronized void discard(Version version) {
+            if (this.next == version) {
+                this.next = null;
+            }
+        }
+
+        private synchronized void promote(Version version) {
+            this.current = version;
+            this.discard(version);
+        }
+
+        private void eval(ScriptEngine engine) throws ScriptException {
+            this.current.eval(engine);
+        }
+
+        // Engines attached since the background compilation are compiled for before any engine is touched.
+        // The failing engine is rolled back too, as the statements before the failure have already run in it.
+        private boolean apply(List<ScriptEngine> engines) throws ScriptException {
+            Version version = this.next;
+            if (version == null) {
+                return false;
+            }
+            List<ScriptEngine> evaluated = new ArrayList<>(engines.size());
+            try {
+                for (ScriptEngine engine : engines) {
+                    version.compile(engine);
+                }
+                for (ScriptEngine engine : engines) {
+                    evaluated.add(engine);
+                    version.eval(engine);
+                }
+            } catch (ScriptException | RuntimeException e) {
+                this.discard(version);
+                for (ScriptEngine engine : evaluated) {
+                    try {
+                        this.eval(engine);
+                    } catch (ScriptException | RuntimeException re) {
+                        e.addSuppressed(re);
+                    }
+                }
+                throw e;
+            }
+            this.promote(version);
+            return true;
+        }
+    }
+
+    private static class Version {
+        private final String scriptName;
+        private final String source;
+        private final Map<ScriptEngine, CompiledScript> compiledScripts = new WeakHashMap<>();
+
+        private Version(String scriptName, String source) {
+            this.scriptName = scriptName;
+            this.source = source;
+        }
+
+        private synchronized CompiledScript compile(ScriptEngine engine) throws ScriptException {
+            CompiledScript compiledScript = this.compiledScripts.get(engine);
+            if (compiledScript == null) {
+                this.compiledScripts.put(engine, compiledScript = this.compileNamed(engine));
+            }
+            return compiledScript;
+        }
+
+        // Errors, watchdog overruns and profiles name the file, other engines only know the name in their context.
+        private CompiledScript compileNamed(ScriptEngine engine) throws ScriptException {
+            if (engine instanceof jdk.nashorn.api.scripting.NashornScriptEngine) {
+                return ((jdk.nashorn.api.scripting.NashornScriptEngine) engine).compile(this.source, this.scriptName);
+            } else if (engine instanceof NashornScriptEngine) {
+                return MappedScriptSource.compile((NashornScriptEngine) engine, this.scriptName, this.source.toCharArray());
+            }
+            return ((Compilable) engine).compile(this.source);
+        }
+
+        private void eval(ScriptEngine engine) throws ScriptException {
+            this.compile(engine).eval(engine.getContext());
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.util.concurrent.TimeUnit;
+import javax.script.ScriptException;
+
+public class ScriptTimeoutException extends ScriptException {
+    private static final long serialVersionUID = 1L;
+
+    private final String scriptName;
+    private final long budgetNanos;
+
+    public ScriptTimeoutException(String scriptName, long budgetNanos, Throwable cause) {
+        super(String.format("Script %s has exceeded its time budget of %d ms", scriptName, TimeUnit.NANOSECONDS.toMillis(budgetNanos)));
+        this.scriptName = scriptName;
+        this.budgetNanos = budgetNanos;
+        this.initCause(cause);
+    }
+
+    public String getScriptName() {
+        return this.scriptName;
+    }
+
+    public long getBudget(TimeUnit unit) {
+        return unit.convert(this.budgetNanos, TimeUnit.NANOSECONDS);
+    }
+}
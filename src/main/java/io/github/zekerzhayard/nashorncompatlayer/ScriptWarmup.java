@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.io.Reader;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Lets mods declare their scripts early, so that they are compiled and exercised on a background pool
+// while the launcher is still scanning, instead of on the first call when the world is loading.
+// Nothing but the script itself and the warm-up given by the mod is run, the warmed engine is handed over by take(String).
+// The engine is charged to the mod which registered the script, not to whichever thread warms it up.
+public class ScriptWarmup {
+    private final static Logger LOGGER = LogManager.getLogger();
+    private final static Map<String, Registration> REGISTRATIONS = new ConcurrentHashMap<>();
+    private static volatile Executor executor;
+
+    // Only evaluates the script, its functions are compiled on their first call.
+    public static void register(String id, String scriptName, Supplier<Reader> source) {
+        register(id, scriptName, source, engine -> {});
+    }
+
+    // The warm-up function is called with the given arguments, so it has to be free of side effects,
+    // e.g. a function of the script dedicated to exercising its hot paths on dummy data.
+    public static void register(String id, String scriptName, Supplier<Reader> source, String warmUpFunction, Object... warmUpArgs) {
+        register(id, scriptName, source, engine -> {
+            try {
+                ((Invocable) engine).invokeFunction(warmUpFunction, warmUpArgs);
+            } catch (ScriptException | NoSuchMethodException e) {
+                LOGGER.debug("Unable to warm up {} of script {}", warmUpFunction, scriptName, e);
+            }
+        });
+    }
+
+    public static void register(String id, String scriptName, Supplier<Reader> source, Consumer<ScriptEngine> exerciser) {
+        Registration registration = new Registration(EngineQuotas.findOwner(), scriptName, source, exerciser);
+        if (REGISTRATIONS.putIfAbsent(id, registration) != null) {
+            throw new IllegalArgumentException(String.format("Script %s has been registered", id));
+        }
+        Executor executor = ScriptWarmup.executor;
+        if (executor != null) {
+            registration.start(executor);
+        }
+    }
+
+    // Starts warming up all scripts registered so far, later registrations are warmed up immediately.
+    public static synchronized void start() {
+        if (executor == null) {
+            AtomicInteger count = new AtomicInteger();
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "NashornCompatLayer Warmup-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+            REGISTRATIONS.values().forEach(registration -> registration.start(pool));
+        }
+    }
+
+    // Returns the warmed engine of a registered script, waiting for it if the warm-up hasn't finished yet.
+    // Each engine is handed over only once, null is returned for unknown or taken scripts.
+    public static ScriptEngine take(String id) throws ScriptException {
+        Registration registration = REGISTRATIONS.remove(id);
+        if (registration == null) {
+            return null;
+        }
+        // Warm up on the caller thread if the pool has never been started.
+        registration.start(Runnable::run);
+        try {
+            return registration.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (ScriptException) new ScriptException("Interrupted while waiting for script " + registration.scriptName).initCause(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ScriptException) {
+                throw (ScriptException) e.getCause();
+            }
+            throw (ScriptException) new ScriptException("Unable to warm up script " + registration.scriptName).initCause(e.getCause());
+        }
+    }
+
+    private static class Registration {
+        private final String owner;
+        private final String scriptName;
+        private final Supplier<Reader> source;
+        private final Consumer<ScriptEngine> exerciser;
+        private final CompletableFuture<ScriptEngine> future = new CompletableFuture<>();
+        private final AtomicInteger started = new AtomicInteger();
+
+        private Registration(String owner, String scriptName, Supplier<Reader> source, Consumer<ScriptEngine> exerciser) {
+            this.owner = owner;
+            this.scriptName = scriptName;
+            this.source = source;
+            this.exerciser = exerciser;
+        }
+
+        private void start(Executor executor) {
+            if (this.started.getAndIncrement() == 0) {
+                executor.execute(this::warmUp);
+            }
+        }
+
+        private void warmUp() {
+            long start = System.nanoTime();
+            try (Reader reader = this.source.get()) {
+                ScriptEngine engine = EngineQuotas.create(this.owner, new NashornScriptEngineFactory()::getScriptEngine);
+                engine.getContext().setAttribute(ScriptEngine.FILENAME, this.scriptName, ScriptContext.ENGINE_SCOPE);
+                engine.eval(reader);
+                this.exerciser.accept(engine);
+                this.future.complete(engine);
+                LOGGER.debug("Warmed up script {} in {} ms", this.scriptName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } catch (Throwable t) {
+                LOGGER.warn("Unable to warm up script {}", this.scriptName, t);
+                this.future.completeExceptionally(t);
+            }
+        }
+    }
+}
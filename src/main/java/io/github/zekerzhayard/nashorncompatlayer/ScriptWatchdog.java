@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.script.ScriptException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Enforces time budgets of script calls with a single shared daemon thread.
+// Cancellation is cooperative: sources evaluated through the legacy engine pass a Checkpoint on every loop iteration
+// and function entry (see ScriptCheckpoints), which throws once the budget of the call is exhausted.
+// The expiry is sticky, so a script catching the cancellation is cancelled again at its next checkpoint.
+// The thread is interrupted as well, for scripts blocked in Java calls, and again every grace period until the call returns.
+// Code which never passes a checkpoint (loaded through load() or compiled by the openjdk engine directly) can only be interrupted.
+public class ScriptWatchdog {
+    private final static Logger LOGGER = LogManager.getLogger();
+    private final static long GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("nashorncompatlayer.watchdog.grace", 100L));
+    private final static LongAdder OVERRUNS = new LongAdder();
+    // Checkpoints return right away while no budgeted call is running anywhere
+    private final static AtomicInteger ACTIVE_WATCHES = new AtomicInteger();
+    private final static ThreadLocal<Watch> CURRENT = new ThreadLocal<>();
+    private final static ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "NashornCompatLayer Watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    public static long getOverrunCount() {
+        return OVERRUNS.sum();
+    }
+
+    public static <R, E extends Exception> R watch(Supplier<String> scriptNameSupplier, long budgetNanos, ScriptCall<R, E> call) throws ScriptException, E {
+        if (budgetNanos <= 0L) {
+            return call.call();
+        }
+
+        String scriptName = scriptNameSupplier.get();
+        Watch watch = new Watch(Thread.currentThread(), scriptName, budgetNanos, CURRENT.get());
+        CURRENT.set(watch);
+        ACTIVE_WATCHES.incrementAndGet();
+        watch.start();
+        try {
+            R result = call.call();
+            // The script may have caught the cancellation and returned normally
+            if (watch.expired) {
+                throw new ScriptTimeoutException(scriptName, budgetNanos, null);
+            }
+            return result;
+        } catch (Exception e) {
+            if (watch.expired && !(e instanceof ScriptTimeoutException)) {
+                throw new ScriptTimeoutException(scriptName, budgetNanos, e);
+            }
+            throw e;
+        } finally {
+            watch.finish();
+            ACTIVE_WATCHES.decrementAndGet();
+            if (watch.parent == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(watch.parent);
+            }
+        }
+    }
+
+    public interface ScriptCall<R, E extends Exception> {
+        R call() throws ScriptException, E;
+    }
+
+    // Bound into every global as ScriptCheckpoints.NAME, scripts can see it but not replace it.
+    public final static class Checkpoint {
+        public void check() {
+            if (ACTIVE_WATCHES.get() != 0) {
+                Watch watch = CURRENT.get();
+                if (watch != null && watch.isExpired()) {
+                    throw new Cancellation(watch.scriptName, watch.budgetNanos);
+                }
+            }
+        }
+    }
+
+    private static class Cancellation extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private Cancellation(String scriptName, long budgetNanos) {
+            super(String.format("Script %s has exceeded its time budget of %d ms", scriptName, TimeUnit.NANOSECONDS.toMillis(budgetNanos)), null, false, false);
+        }
+    }
+
+    private static class Watch {
+        private final Thread thread;
+        private final String scriptName;
+        private final long budgetNanos;
+        // A budgeted call made from inside another one is cancelled together with it
+        private final Watch parent;
+        private ScheduledFuture<?> future;
+        private boolean finished;
+        private boolean reinterrupted;
+        private volatile boolean expired;
+
+        private Watch(Thread thread, String scriptName, long budgetNanos, Watch parent) {
+            this.thread = thread;
+            this.scriptName = scriptName;
+            this.budgetNanos = budgetNanos;
+            this.parent = parent;
+        }
+
+        private boolean isExpired() {
+            for (Watch watch = this; watch != null; watch = watch.parent) {
+                if (watch.expired) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized void start() {
+            this.future = SCHEDULER.schedule(this::expire, this.budgetNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private synchronized void expire() {
+            if (this.finished) {
+                return;
+            }
+            this.expired = true;
+            OVERRUNS.increment();
+            LOGGER.warn("Script {} on thread {} has exceeded its time budget of {} ms, script stack: [{}]",
+                this.scriptName, this.thread.getName(), TimeUnit.NANOSECONDS.toMillis(this.budgetNanos),
+                Stream.of(this.thread.getStackTrace()).filter(ScriptWatchdog::isScriptFrame).map(e -> e.getFileName() + ":" + e.getLineNumber()).collect(Collectors.joining(", ")));
+            this.thread.interrupt();
+            this.future = SCHEDULER.schedule(this::reinterrupt, GRACE_NANOS, TimeUnit.NANOSECONDS);
+        }
+
+        private synchronized void reinterrupt() {
+            if (this.finished) {
+                return;
+            }
+            if (!this.reinterrupted) {
+                this.reinterrupted = true;
+                LOGGER.warn("Script {} on thread {} hasn't reached a checkpoint {} ms after its budget, it keeps being interrupted until it returns",
+                    this.scriptName, this.thread.getName(), TimeUnit.NANOSECONDS.toMillis(GRACE_NANOS));
+            }
+            this.thread.interrupt();
+            this.future = SCHEDULER.schedule(this::reinterrupt, GRACE_NANOS, TimeUnit.NANOSECONDS);
+        }
+
+        private void finish() {
+            synchronized (this) {
+                this.finished = true;
+                this.future.cancel(false);
+            }
+            // Don't leave our own interruption behind for the caller
+            if (this.expired) {
+                Thread.interrupted();
+            }
+        }
+    }
+
+    static boolean isScriptFrame(StackTraceElement element) {
+        return element.getClassName().startsWith("org.openjdk.nashorn.internal.scripts.Script$") && element.getFileName() != null && !element.getFileName().endsWith(".java");
+    }
+}
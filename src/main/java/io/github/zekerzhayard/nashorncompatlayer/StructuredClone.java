@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.openjdk.nashorn.api.scripting.NashornScriptEngine;
+import org.openjdk.nashorn.api.scripting.ScriptObjectMirror;
+
+// Copies script object graphs between engines or threads through a compact binary buffer instead of a live mirror or JSON.
+// Supported are undefined, null, booleans, numbers, strings, arrays and plain objects, the latter with their own enumerable string keys.
+// Objects reached more than once, cycles included, are written once and referenced afterwards, and repeated strings become back references.
+// Functions, Java objects and built-in objects like Date, RegExp, String wrappers or typed arrays can't be cloned.
+// Both directions walk the graph with an explicit stack, so deeply nested values don't overflow the thread stack.
+//
+// Format: a version byte, then one value, where every value starts with a tag
+//   INT zigzag varint | DOUBLE 8 bytes | LATIN1 / UTF16 varint length and characters | STRING_REF varint index
+//   ARRAY varint length and values | OBJECT varint count and key/value pairs | OBJECT_REF varint index
+public class StructuredClone {
+    private final static byte VERSION = 1;
+
+    private final static byte UNDEFINED = 0;
+    private final static byte NULL = 1;
+    private final static byte FALSE = 2;
+    private final static byte TRUE = 3;
+    private final static byte INT = 4;
+    private final static byte DOUBLE = 5;
+    private final static byte LATIN1 = 6;
+    private final static byte UTF16 = 7;
+    private final static byte STRING_REF = 8;
+    private final static byte ARRAY = 9;
+    private final static byte OBJECT = 10;
+    private final static byte OBJECT_REF = 11;
+
+    private final static Object UNDEFINED_VALUE = CheckedLambdaUtils.wrapSupplier(() -> NashornInternals.IMPL_LOOKUP.findStaticGetter(
+        NashornInternals.findNashornClass("org.openjdk.nashorn.internal.runtime.ScriptRuntime"),
+        "UNDEFINED",
+        NashornInternals.findNashornClass("org.openjdk.nashorn.internal.runtime.Undefined")
+    ).invoke());
+    private final static Class<?> SCRIPT_FUNCTION = NashornInternals.findNashornClass("org.openjdk.nashorn.internal.runtime.ScriptFunction");
+    private final static MethodHandle GLOBAL_NEW_EMPTY_INSTANCE = NashornInternals.findStatic(NashornInternals.GLOBAL, "newEmptyInstance", MethodType.methodType(NashornInternals.SCRIPT_OBJECT));
+    private final static MethodHandle GLOBAL_ALLOCATE = NashornInternals.findStatic(NashornInternals.GLOBAL, "allocate", MethodType.methodType(NashornInternals.findNashornClass("org.openjdk.nashorn.internal.objects.NativeArray"), Object[].class));
+    private final static MethodHandle SCRIPT_OBJECT_GET_CLASS_NAME = NashornInternals.findVirtual(NashornInternals.SCRIPT_OBJECT, "getClassName", MethodType.methodType(String.class));
+    private final static MethodHandle SCRIPT_OBJECT_IS_ARRAY = NashornInternals.findVirtual(NashornInternals.SCRIPT_OBJECT, "isArray", MethodType.methodType(boolean.class));
+    private final static MethodHandle SCRIPT_OBJECT_GET_LENGTH = NashornInternals.findVirtual(NashornInternals.SCRIPT_OBJECT, "getLength", MethodType.methodType(Object.class));
+    private final static MethodHandle SCRIPT_OBJECT_GET_OWN_KEYS = NashornInternals.findVirtual(NashornInternals.SCRIPT_OBJECT, "getOwnKeys", MethodType.methodType(String[].class, boolean.class));
+    private final static MethodHandle SCRIPT_OBJECT_ADD_OWN_PROPERTY = NashornInternals.findVirtual(NashornInternals.SCRIPT_OBJECT, "addOwnProperty", MethodType.methodType(NashornInternals.findNashornClass("org.openjdk.nashorn.internal.runtime.Property"), Object.class, int.class, Object.class));
+
+    public static ByteBuffer serialize(Object value) {
+        return serialize(value, false);
+    }
+
+    // Accepts script objects of the legacy and the openjdk API as well as primitives.
+    public static ByteBuffer serialize(Object value, boolean direct) {
+        Object instance = value instanceof jdk.nashorn.api.scripting.ScriptObjectMirror ? ((jdk.nashorn.api.scripting.ScriptObjectMirror) value).instance : value;
+        var writer = new Writer();
+        writer.writeByte(VERSION);
+        boolean isMirror = instance instanceof ScriptObjectMirror;
+        Object root = isMirror ? CheckedLambdaUtils.wrapSupplier(() -> NashornInternals.MIRROR_GET_SCRIPT_OBJECT.invoke(instance)) : instance;
+        Object global = isMirror ? CheckedLambdaUtils.wrapSupplier(() -> NashornInternals.MIRROR_GET_HOME_GLOBAL.invoke(instance)) : null;
+        NashornInternals.inGlobal(global, oldGlobal -> {
+            writer.writeRoot(root);
+            return null;
+        });
+        if (!direct) {
+            return ByteBuffer.wrap(Arrays.copyOf(writer.buffer, writer.position));
+        }
+        return ByteBuffer.allocateDirect(writer.position).put(writer.buffer, 0, writer.position).flip();
+    }
+
+    // Rebuilds the value in the global of the engine, script objects are returned as mirrors of the same API as the engine.
+    // Only the bytes between position and limit are read, the buffer itself is never modified.
+    public static Object deserialize(ByteBuffer buffer, ScriptEngine engine) throws ScriptException {
+        var reader = new Reader(buffer.duplicate());
+        byte version = reader.buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported structured clone version: " + version);
+        }
+        Object global = getGlobal(engine);
+        Object value = NashornInternals.inGlobal(global, oldGlobal -> reader.readRoot());
+        Object mirror = ScriptObjectMirror.wrap(value, global);
+        return engine instanceof jdk.nashorn.api.scripting.NashornScriptEngine ? NashornCompatLayer.convertScriptObjectMirror(mirror) : mirror;
+    }
+
+    public static Object copyTo(Object value, ScriptEngine engine) throws ScriptException {
+        return deserialize(serialize(value), engine);
+    }
+
+    private static Object getGlobal(ScriptEngine engine) throws ScriptException {
+        NashornScriptEngine nashornEngine = (NashornScriptEngine) (engine instanceof jdk.nashorn.api.scripting.NashornScriptEngine ? ((jdk.nashorn.api.scripting.NashornScriptEngine) engine).instance : engine);
+        ScriptObjectMirror global = NashornInternals.getGlobal(nashornEngine, nashornEngine.getContext());
+        return CheckedLambdaUtils.wrapSupplier(() -> NashornInternals.MIRROR_GET_SCRIPT_OBJECT.invoke(global));
+    }
+
+    private static class Writer {
+        private byte[] buffer = new byte[256];
+        private int position;
+        private final Map<Object, Integer> objects = new IdentityHashMap<>();
+        private final Map<String, Integer> strings = new HashMap<>();
+        // Values still to be written, the last one is next. Keys are pushed as strings and written like string values.
+        private Object[] pending = new Object[16];
+        private int pendingSize;
+
+        private void writeRoot(Object root) throws Throwable {
+            this.push(root);
+            while (this.pendingSize > 0) {
+                Object value = this.pending[--this.pendingSize];
+                this.pending[this.pendingSize] = null;
+                this.writeValue(value);
+            }
+        }
+
+        private void writeValue(Object value) throws Throwable {
+            if (value == null) {
+                this.writeByte(NULL);
+            } else if (value instanceof Boolean) {
+                this.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                this.writeByte(INT);
+                this.writeZigZag(((Number) value).intValue());
+            } else if (value instanceof Number) {
+                this.writeNumber(((Number) value).doubleValue());
+            } else if (value instanceof CharSequence || value instanceof Character) {
+                this.writeString(value.toString());
+            } else if (ScriptObjectMirror.isUndefined(value)) {
+                this.writeByte(UNDEFINED);
+            } else if (value instanceof ScriptObjectMirror) {
+                this.writeValue(NashornInternals.MIRROR_GET_SCRIPT_OBJECT.invoke((ScriptObjectMirror) value));
+            } else if (NashornInternals.SCRIPT_OBJECT.isInstance(value) && !SCRIPT_FUNCTION.isInstance(value)) {
+                this.writeObject(value);
+            } else {
+                throw new IllegalArgumentException(value.getClass().getName() + " could not be cloned");
+            }
+        }
+
+        private void writeNumber(double value) {
+            int intValue = (int) value;
+            if (intValue == value && (intValue != 0 || Double.doubleToRawLongBits(value) == 0L)) {
+                this.writeByte(INT);
+                this.writeZigZag(intValue);
+            } else {
+                this.writeByte(DOUBLE);
+                this.ensureCapacity(8);
+                long bits = Double.doubleToRawLongBits(value);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    this.buffer[this.position++] = (byte) (bits >>> shift);
+                }
+            }
+        }
+
+        private void writeString(String value) {
+            Integer index = this.strings.putIfAbsent(value, this.strings.size());
+            if (index != null) {
+                this.writeByte(STRING_REF);
+                this.writeVarInt(index);
+                return;
+            }
+            int start = this.position;
+            int length = value.length();
+            this.writeByte(LATIN1);
+            this.writeVarInt(length);
+            this.ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c > 0xFF) {
+                    // Start over, the whole string is written as UTF-16 instead.
+                    this.position = start;
+                    this.writeByte(UTF16);
+                    this.writeVarInt(length);
+                    this.ensureCapacity(length * 2);
+                    for (int j = 0; j < length; j++) {
+                        char d = value.charAt(j);
+                        this.buffer[this.position++] = (byte) (d >>> 8);
+                        this.buffer[this.position++] = (byte) d;
+                    }
+                    return;
+                }
+                this.buffer[this.position++] = (byte) c;
+            }
+        }
+
+        // The children are read in order, so getters run as they would in JSON.stringify, and then pushed in reverse.
+        private void writeObject(Object sobj) throws Throwable {
+            Integer index = this.objects.get(sobj);
+            if (index != null) {
+                this.writeByte(OBJECT_REF);
+                this.writeVarInt(index);
+                return;
+            }
+            String className = (String) SCRIPT_OBJECT_GET_CLASS_NAME.invoke(sobj);
+            boolean isArray = className.equals("Array") && (boolean) SCRIPT_OBJECT_IS_ARRAY.invoke(sobj);
+            if (!isArray && !className.equals("Object")) {
+                throw new IllegalArgumentException(className + " objects could not be cloned");
+            }
+            this.objects.put(sobj, this.objects.size());
+            if (isArray) {
+                int length = ((Number) SCRIPT_OBJECT_GET_LENGTH.invoke(sobj)).intValue();
+                this.writeByte(ARRAY);
+                this.writeVarInt(length);
+                Object[] values = new Object[length];
+                for (int i = 0; i < length; i++) {
+                    values[i] = NashornInternals.SCRIPT_OBJECT_GET_INDEX.invoke(sobj, i);
+                }
+                this.ensurePending(length);
+                for (int i = length - 1; i >= 0; i--) {
+                    this.push(values[i]);
+                }
+            } else {
+                String[] keys = (String[]) SCRIPT_OBJECT_GET_OWN_KEYS.invoke(sobj, false);
+                this.writeByte(OBJECT);
+                this.writeVarInt(keys.length);
+                Object[] values = new Object[keys.length];
+                for (int i = 0; i < keys.length; i++) {
+                    values[i] = NashornInternals.SCRIPT_OBJECT_GET.invoke(sobj, (Object) keys[i]);
+                }
+                this.ensurePending(keys.length * 2);
+                for (int i = keys.length - 1; i >= 0; i--) {
+                    this.push(values[i]);
+                    this.push(keys[i]);
+                }
+            }
+        }
+
+        private void push(Object value) {
+            this.ensurePending(1);
+            this.pending[this.pendingSize++] = value;
+        }
+
+        private void ensurePending(int length) {
+            if (this.pendingSize + length > this.pending.length) {
+                this.pending = Arrays.copyOf(this.pending, Math.max(this.pending.length * 2, this.pendingSize + length));
+            }
+        }
+
+        private void writeZigZag(int value) {
+            this.writeVarInt((value << 1) ^ (value >> 31));
+        }
+
+        private void writeVarInt(int value) {
+            this.ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                this.buffer[this.position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.buffer[this.position++] = (byte) value;
+        }
+
+        private void writeByte(byte value) {
+            this.ensureCapacity(1);
+            this.buffer[this.position++] = value;
+        }
+
+        private void ensureCapacity(int length) {
+            if (this.position + length > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.position + length));
+            }
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer buffer;
+        private final List<Object> objects = new ArrayList<>();
+        private final List<String> strings = new ArrayList<>();
+        // Arrays and objects whose values are still being read, the innermost one first.
+        private final Deque<Container> containers = new ArrayDeque<>();
+
+        private Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        // Containers are stored in their parent as soon as they are created and filled once they are on top of the stack.
+        private Object readRoot() throws Throwable {
+            Object root = this.readValue();
+            while (!this.containers.isEmpty()) {
+                Container container = this.containers.peek();
+                if (container.index == container.length) {
+                    this.containers.pop();
+                } else if (container.isArray) {
+                    NashornInternals.SCRIPT_OBJECT_SET_INDEX.invoke(container.sobj, container.index++, this.readValue(), 0);
+                } else {
+                    container.index++;
+                    String key = this.readString(this.buffer.get());
+                    Object value = this.readValue();
+                    // Keys are unique and the object is fresh, so plain keys skip the lookup through the prototype chain done by put.
+                    // Index keys still go through put, Nashorn keeps them in the array data instead of the property map.
+                    if (!key.isEmpty() && Character.isDigit(key.charAt(0))) {
+                        NashornInternals.SCRIPT_OBJECT_PUT.invoke(container.sobj, (Object) key, value, false);
+                    } else {
+                        SCRIPT_OBJECT_ADD_OWN_PROPERTY.invoke(container.sobj, (Object) key, 0, value);
+                    }
+                }
+            }
+            return root;
+        }
+
+        private Object readValue() throws Throwable {
+            byte tag = this.buffer.get();
+            return switch (tag) {
+                case UNDEFINED -> UNDEFINED_VALUE;
+                case NULL -> null;
+                case FALSE -> Boolean.FALSE;
+                case TRUE -> Boolean.TRUE;
+                case INT -> {
+                    int value = this.readVarInt();
+                    yield (value >>> 1) ^ -(value & 1);
+                }
+                case DOUBLE -> Double.longBitsToDouble(this.buffer.getLong());
+                case LATIN1, UTF16, STRING_REF -> this.readString(tag);
+                case ARRAY -> {
+                    int length = this.readVarInt();
+                    Object array = GLOBAL_ALLOCATE.invoke(new Object[length]);
+                    this.objects.add(array);
+                    this.containers.push(new Container(array, true, length));
+                    yield array;
+                }
+                case OBJECT -> {
+                    int count = this.readVarInt();
+                    Object sobj = GLOBAL_NEW_EMPTY_INSTANCE.invoke();
+                    this.objects.add(sobj);
+                    this.containers.push(new Container(sobj, false, count));
+                    yield sobj;
+                }
+                case OBJECT_REF -> this.objects.get(this.readVarInt());
+                default -> throw new IllegalArgumentException("Unknown structured clone tag: " + tag);
+            };
+        }
+
+        private String readString(byte tag) {
+            if (tag == STRING_REF) {
+                return this.strings.get(this.readVarInt());
+            }
+            int length = this.readVarInt();
+            String value;
+            if (tag == LATIN1) {
+                if (this.buffer.hasArray()) {
+                    value = new String(this.buffer.array(), this.buffer.arrayOffset() + this.buffer.position(), length, StandardCharsets.ISO_8859_1);
+                    this.buffer.position(this.buffer.position() + length);
+                } else {
+                    byte[] bytes = new byte[length];
+                    this.buffer.get(bytes);
+                    value = new String(bytes, StandardCharsets.ISO_8859_1);
+                }
+            } else if (tag == UTF16) {
+                char[] chars = new char[length];
+                this.buffer.asCharBuffer().get(chars);
+                this.buffer.position(this.buffer.position() + length * 2);
+                value = new String(chars);
+            } else {
+                throw new IllegalArgumentException("Unknown structured clone string tag: " + tag);
+            }
+            this.strings.add(value);
+            return value;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = this.buffer.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    private static class Container {
+        private final Object sobj;
+        private final boolean isArray;
+        private final int length;
+        private int index;
+
+        private Container(Object sobj, boolean isArray, int length) {
+            this.sobj = sobj;
+            this.isArray = isArray;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer.remapper;
+
+import java.nio.ByteBuffer;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+
+// Remaps class files which never pass through the launch plugin, e.g. the ones loaded by custom class loaders.
+// The constant pool is scanned first, so classes without any legacy Nashorn reference are returned untouched without being parsed by ASM.
+public class NashornClassRemapper {
+    private final static int CLASS_MAGIC = 0xCAFEBABE;
+    private final static byte[] PACKAGE_PREFIX = {'j', 'd', 'k', '/', 'n', 'a', 's', 'h', 'o', 'r', 'n', '/'};
+    private final static byte[] OPENJDK_PREFIX = {'o', 'r', 'g', '/', 'o', 'p', 'e', 'n'};
+
+    public static byte[] remap(byte[] classBytes) {
+        if (!needsRemapping(ByteBuffer.wrap(classBytes))) {
+            return classBytes;
+        }
+        byte[] remapped = remap(new ClassReader(classBytes));
+        return remapped == null ? classBytes : remapped;
+    }
+
+    public static ByteBuffer remap(ByteBuffer classBuffer) {
+        if (!needsRemapping(classBuffer)) {
+            return classBuffer;
+        }
+        ClassReader classReader;
+        if (classBuffer.hasArray()) {
+            classReader = new ClassReader(classBuffer.array(), classBuffer.arrayOffset() + classBuffer.position(), classBuffer.remaining());
+        } else {
+            byte[] classBytes = new byte[classBuffer.remaining()];
+            classBuffer.duplicate().get(classBytes);
+            classReader = new ClassReader(classBytes);
+        }
+        byte[] remapped = remap(classReader);
+        return remapped == null ? classBuffer : ByteBuffer.wrap(remapped);
+    }
+
+    // Only looks at the bytes between position and limit, the buffer itself is never modified.
+    public static boolean needsRemapping(ByteBuffer classBuffer) {
+        int offset = classBuffer.position();
+        int limit = classBuffer.limit();
+        if (limit - offset < 10 || classBuffer.getInt(offset) != CLASS_MAGIC) {
+            // Not a class file, let ASM complain about it.
+            return true;
+        }
+        int count = classBuffer.getShort(offset + 8) & 0xFFFF;
+        int index = offset + 10;
+        try {
+            for (int i = 1; i < count; i++) {
+                int tag = classBuffer.get(index);
+                switch (tag) {
+                    case 1 -> {
+                        int length = classBuffer.getShort(index + 1) & 0xFFFF;
+                        if (containsNashornPackage(classBuffer, index + 3, index + 3 + length)) {
+                            return true;
+                        }
+                        index += 3 + length;
+                    }
+                    case 7, 8, 16, 19, 20 -> index += 3;
+                    case 15 -> index += 4;
+                    case 3, 4, 9, 10, 11, 12, 17, 18 -> index += 5;
+                    case 5, 6 -> {
+                        index += 9;
+                        i++;
+                    }
+                    default -> {
+                        return true;
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return true;
+        }
+        return false;
+    }
+
+    // Matches both "jdk/nashorn/" and "jdk.nashorn.", but not when they are part of "org/openjdk/nashorn/" or "org.openjdk.nashorn.".
+    private static boolean containsNashornPackage(ByteBuffer classBuffer, int from, int to) {
+        for (int i = from, end = to - PACKAGE_PREFIX.length; i <= end; i++) {
+            if (classBuffer.get(i) != 'j') {
+                continue;
+            }
+            byte separator = classBuffer.get(i + 3);
+            if ((separator == '/' || separator == '.') && matches(classBuffer, i, PACKAGE_PREFIX, separator)
+                && !(i - OPENJDK_PREFIX.length >= from && matches(classBuffer, i - OPENJDK_PREFIX.length, OPENJDK_PREFIX, separator))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // '/' in the prefix stands for the given separator.
+    private static boolean matches(ByteBuffer classBuffer, int index, byte[] prefix, byte separator) {
+        for (int i = 0; i < prefix.length; i++) {
+            byte expected = prefix[i] == '/' ? separator : prefix[i];
+            if (classBuffer.get(index + i) != expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] remap(ClassReader classReader) {
+        var classWriter = new ClassWriter(0);
+        var remapper = new NashornPackageRemapper();
+        classReader.accept(new ClassRemapper(classWriter, remapper), 0);
+        return remapper.hasRemapped() ? classWriter.toByteArray() : null;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer.remapper;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+// Decides from the internal name alone whether a class could reference legacy Nashorn at all.
+// Rules are prefixes of internal names (dots are accepted too) kept in a trie, the longest matching prefix wins,
+// and classes without any matching rule are included.
+public class PackageRules {
+    private final static String EXCLUDE_PROPERTY = "nashorncompatlayer.remapper.exclude";
+    private final static String INCLUDE_PROPERTY = "nashorncompatlayer.remapper.include";
+    private final static String DEFAULTS_PROPERTY = "nashorncompatlayer.remapper.defaultRules";
+
+    // Minecraft, Forge and the libraries they ship never reference jdk.nashorn, except for Forge's coremod engine.
+    private final static List<String> DEFAULT_EXCLUDES = List.of(
+        "net/minecraft/", "net/minecraftforge/", "com/mojang/", "cpw/mods/", "mcp/",
+        "java/", "javax/", "jdk/internal/", "sun/", "com/sun/",
+        "org/openjdk/nashorn/", "io/github/zekerzhayard/nashorncompatlayer/", "org/objectweb/asm/",
+        "com/google/", "org/apache/", "io/netty/", "it/unimi/dsi/fastutil/", "org/lwjgl/", "org/slf4j/",
+        "joptsimple/", "com/electronwill/nightconfig/", "org/antlr/", "org/spongepowered/asm/", "com/ibm/icu/", "oshi/"
+    );
+    private final static List<String> DEFAULT_INCLUDES = List.of(
+        "net/minecraftforge/coremod/"
+    );
+
+    private final Node root = new Node();
+    private final LongAdder skipped = new LongAdder();
+
+    public static PackageRules fromProperties() {
+        var rules = new PackageRules();
+        if (Boolean.parseBoolean(System.getProperty(DEFAULTS_PROPERTY, "true"))) {
+            DEFAULT_EXCLUDES.forEach(rules::exclude);
+            DEFAULT_INCLUDES.forEach(rules::include);
+        }
+        split(System.getProperty(EXCLUDE_PROPERTY)).forEach(rules::exclude);
+        split(System.getProperty(INCLUDE_PROPERTY)).forEach(rules::include);
+        return rules;
+    }
+
+    private static Stream<String> split(String value) {
+        return value == null ? Stream.empty() : Stream.of(value.split(",")).map(String::trim).filter(s -> !s.isEmpty());
+    }
+
+    public PackageRules exclude(String prefix) {
+        this.node(prefix).included = Boolean.FALSE;
+        return this;
+    }
+
+    public PackageRules include(String prefix) {
+        this.node(prefix).included = Boolean.TRUE;
+        return this;
+    }
+
+    private Node node(String prefix) {
+        Node node = this.root;
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            node = node.children.computeIfAbsent(c == '.' ? '/' : c, k -> new Node());
+        }
+        return node;
+    }
+
+    public boolean isIncluded(String internalName) {
+        Node node = this.root;
+        boolean included = true;
+        for (int i = 0; i < internalName.length() && node != null; i++) {
+            node = node.children.get(internalName.charAt(i));
+            if (node != null && node.included != null) {
+                included = node.included;
+            }
+        }
+        return included;
+    }
+
+    // Same as isIncluded, but counts the classes which are skipped.
+    public boolean test(String internalName) {
+        if (this.isIncluded(internalName)) {
+            return true;
+        }
+        this.skipped.increment();
+        return false;
+    }
+
+    public long getSkippedCount() {
+        return this.skipped.sum();
+    }
+
+    private static class Node {
+        private final Map<Character, Node> children = new HashMap<>(4);
+        private Boolean included;
+    }
+}
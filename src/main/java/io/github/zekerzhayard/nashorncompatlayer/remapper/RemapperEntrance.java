@@ -46,6 +46,7 @@ public class RemapperEntrance implements ILaunchPluginService {
         CheckedLambdaUtils.wrapSupplier(() -> MethodHandles.Lookup.class.getDeclaredField("IMPL_LOOKUP")),
         (unsafe, field) -> (MethodHandles.Lookup) unsafe.getReference(unsafe.staticFieldBase(field), unsafe.staticFieldOffset(field))
     );
+    final static PackageRules RULES = PackageRules.fromProperties();
 
     @SuppressWarnings("unchecked")
     public static void bootstrap() {
@@ -79,6 +80,10 @@ public class RemapperEntrance implements ILaunchPluginService {
         Optional.ofNullable(clz.getSuperclass()).ifPresent(cl -> replaceFields(src, dest, cl));
     }
 
+    public static long getSkippedClassCount() {
+        return RULES.getSkippedCount();
+    }
+
     // implement ILaunchPluginService
 
     @Override
@@ -93,7 +98,7 @@ public class RemapperEntrance implements ILaunchPluginService {
 
     @Override
     public EnumSet<Phase> handlesClass(Type classType, boolean isEmpty, String reason) {
-        return isEmpty || !Objects.equals(reason, ITransformerActivity.CLASSLOADING_REASON) ? EnumSet.noneOf(Phase.class) : EnumSet.of(Phase.AFTER);
+        return isEmpty || !Objects.equals(reason, ITransformerActivity.CLASSLOADING_REASON) || !RULES.test(classType.getInternalName()) ? EnumSet.noneOf(Phase.class) : EnumSet.of(Phase.AFTER);
     }
 
     @Override
@@ -25,23 +25,50 @@
 
 package jdk.nashorn.api.scripting;
 
+import java.io.IOException;
 import java.io.Reader;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
 import javax.script.AbstractScriptEngine;
 import javax.script.Bindings;
 import javax.script.Compilable;
 import javax.script.CompiledScript;
 import javax.script.Invocable;
 import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
 import javax.script.ScriptException;
 
+import org.openjdk.nashorn.api.scripting.URLReader;
+
+import io.github.zekerzhayard.nashorncompatlayer.CompatLayerMetrics;
+import io.github.zekerzhayard.nashorncompatlayer.EngineFootprint;
+import io.github.zekerzhayard.nashorncompatlayer.EngineMetrics;
+import io.github.zekerzhayard.nashorncompatlayer.EngineQuotas;
+import io.github.zekerzhayard.nashorncompatlayer.LegacyTypeResolver;
+import io.github.zekerzhayard.nashorncompatlayer.MappedScriptSource;
 import io.github.zekerzhayard.nashorncompatlayer.NashornCompatLayer;
+import io.github.zekerzhayard.nashorncompatlayer.NashornInternals;
+import io.github.zekerzhayard.nashorncompatlayer.ParallelScriptFunction;
+import io.github.zekerzhayard.nashorncompatlayer.ScriptCheckpoints;
+import io.github.zekerzhayard.nashorncompatlayer.ScriptProfiler;
+import io.github.zekerzhayard.nashorncompatlayer.ScriptTimeoutException;
+import io.github.zekerzhayard.nashorncompatlayer.ScriptWatchdog;
 
 public final class NashornScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
     public final org.openjdk.nashorn.api.scripting.NashornScriptEngine instance;
 
+    private final EngineMetrics metrics;
+    private final boolean prelude;
+    private volatile long timeBudgetNanos;
+
     public NashornScriptEngine(org.openjdk.nashorn.api.scripting.NashornScriptEngine instance) {
         this.instance = instance;
+        this.metrics = CompatLayerMetrics.registerEngine(instance);
+        this.prelude = NashornScriptEngineFactory.hasPrelude(instance);
     }
 
     @Override
@@ -76,32 +103,54 @@ public final class NashornScriptEngine extends AbstractScriptEngine implements C
 
     @Override
     public Object eval(Reader reader, Bindings bindings) throws ScriptException {
-        return NashornCompatLayer.convertScriptObjectMirror(this.instance.eval(reader, (Bindings) NashornCompatLayer.convertScriptObjectMirror(bindings)));
+        long budgetNanos = this.timeBudgetNanos;
+        if (isCheckpointed(reader, budgetNanos)) {
+            return this.eval(readScript(reader), bindings);
+        }
+        return this.call(false, () -> getScriptName(bindings), budgetNanos, () -> {
+            Bindings instanceBindings = (Bindings) NashornCompatLayer.convertScriptObjectMirror(bindings);
+            this.prepareGlobal(instanceBindings, false);
+            return NashornCompatLayer.convertScriptObjectMirror(this.instance.eval(reader, instanceBindings));
+        });
     }
 
     @Override
     public Object eval(String script, Bindings bindings) throws ScriptException {
-        return NashornCompatLayer.convertScriptObjectMirror(this.instance.eval(script, (Bindings) NashornCompatLayer.convertScriptObjectMirror(bindings)));
+        long budgetNanos = this.timeBudgetNanos;
+        return this.call(false, () -> getScriptName(bindings), budgetNanos, () -> {
+            boolean checkpointed = isCheckpointed(budgetNanos);
+            Bindings instanceBindings = (Bindings) NashornCompatLayer.convertScriptObjectMirror(bindings);
+            this.prepareGlobal(instanceBindings, checkpointed);
+            return NashornCompatLayer.convertScriptObjectMirror(this.instance.eval(checkpointed ? ScriptCheckpoints.instrument(script) : script, instanceBindings));
+        });
     }
 
     @Override
     public Object eval(Reader reader) throws ScriptException {
-        return NashornCompatLayer.convertScriptObjectMirror(this.instance.eval(reader));
+        return this.eval(reader, this.getContext());
     }
 
     @Override
     public Object eval(String script) throws ScriptException {
-        return NashornCompatLayer.convertScriptObjectMirror(this.instance.eval(script));
+        return this.eval(script, this.getContext());
     }
 
     @Override
     public Object eval(final Reader reader, final ScriptContext ctxt) throws ScriptException {
-        return NashornCompatLayer.convertScriptObjectMirror(this.instance.eval(reader, ctxt));
+        long budgetNanos = this.timeBudgetNanos;
+        if (isCheckpointed(reader, budgetNanos)) {
+            return this.eval(readScript(reader), ctxt);
+        }
+        return this.call(false, () -> getScriptName(ctxt), budgetNanos, () -> {
+            this.prepareGlobal(ctxt, false);
+            return NashornCompatLayer.convertScriptObjectMirror(this.instance.eval(reader, ctxt));
+        });
     }
 
     @Override
     public Object eval(final String script, final ScriptContext ctxt) throws ScriptException {
-        return NashornCompatLayer.convertScriptObjectMirror(this.instance.eval(script, ctxt));
+        long budgetNanos = this.timeBudgetNanos;
+        return this.call(false, () -> getScriptName(ctxt), budgetNanos, () -> this.evalScript(script, ctxt, budgetNanos));
     }
 
     @Override
@@ -111,19 +160,70 @@ public final class NashornScriptEngine extends AbstractScriptEngine implements C
 
     @Override
     public Bindings createBindings() {
-        return (Bindings) NashornCompatLayer.convertScriptObjectMirror(this.instance.createBindings());
+        Bindings bindings = this.instance.createBindings();
+        if (bindings instanceof org.openjdk.nashorn.api.scripting.ScriptObjectMirror) {
+            this.prepareGlobal((org.openjdk.nashorn.api.scripting.ScriptObjectMirror) bindings, false);
+        }
+        return (Bindings) NashornCompatLayer.convertScriptObjectMirror(bindings);
     }
 
     // Compilable methods
 
     @Override
     public CompiledScript compile(final Reader reader) throws ScriptException {
-        return this.instance.compile(reader);
+        if (isCheckpointed(reader, this.timeBudgetNanos)) {
+            return this.compile(readScript(reader));
+        }
+        return this.compile(false, () -> this.instance.compile(reader));
     }
 
     @Override
     public CompiledScript compile(final String str) throws ScriptException {
-        return this.instance.compile(str);
+        if (isCheckpointed(this.timeBudgetNanos)) {
+            return this.compile(true, () -> this.instance.compile(ScriptCheckpoints.instrument(str)));
+        }
+        return this.compile(false, () -> this.instance.compile(str));
+    }
+
+    // Named like a script file, without changing the file name in the engine's context
+    public CompiledScript compile(final String str, final String scriptName) throws ScriptException {
+        if (isCheckpointed(this.timeBudgetNanos)) {
+            return this.compile(true, () -> MappedScriptSource.compile(this.instance, scriptName, ScriptCheckpoints.instrument(str).toCharArray()));
+        }
+        return this.compile(false, () -> MappedScriptSource.compile(this.instance, scriptName, str.toCharArray()));
+    }
+
+    // Memory-mapped script files
+
+    public Object eval(final Path path) throws ScriptException {
+        return this.eval(path, this.getContext());
+    }
+
+    public Object eval(final Path path, final ScriptContext ctxt) throws ScriptException {
+        long budgetNanos = this.timeBudgetNanos;
+        return this.call(false, path::toString, budgetNanos, () -> {
+            boolean checkpointed = isCheckpointed(budgetNanos);
+            this.prepareGlobal(ctxt, checkpointed);
+            return NashornCompatLayer.convertScriptObjectMirror(MappedScriptSource.eval(this.instance, path, ctxt, checkpointed));
+        });
+    }
+
+    public CompiledScript compile(final Path path) throws ScriptException {
+        boolean checkpointed = isCheckpointed(this.timeBudgetNanos);
+        return this.compile(checkpointed, () -> MappedScriptSource.compile(this.instance, path, checkpointed));
+    }
+
+    // Scripts compiled while the engine has a time budget keep their checkpoints, even if the budget is removed later.
+    private CompiledScript compile(boolean checkpointed, ScriptWatchdog.ScriptCall<CompiledScript, ScriptException> compile) throws ScriptException {
+        Lock lock = this.metrics.beginUse();
+        long start = System.nanoTime();
+        try {
+            CompiledScript compiledScript = compile.call();
+            this.metrics.recordCompile(System.nanoTime() - start);
+            return new PreparedScript(compiledScript, checkpointed);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // Invocable methods
@@ -131,13 +231,13 @@ public final class NashornScriptEngine extends AbstractScriptEngine implements C
     @Override
     public Object invokeFunction(final String name, final Object... args)
         throws ScriptException, NoSuchMethodException {
-        return NashornCompatLayer.convertScriptObjectMirror(this.instance.invokeFunction(name, args));
+        return this.call(true, () -> name, this.timeBudgetNanos, () -> NashornCompatLayer.convertScriptObjectMirror(this.instance.invokeFunction(name, args)));
     }
 
     @Override
     public Object invokeMethod(final Object thiz, final String name, final Object... args)
         throws ScriptException, NoSuchMethodException {
-        return NashornCompatLayer.convertScriptObjectMirror(this.instance.invokeMethod(thiz, name, args));
+        return this.call(true, () -> name, this.timeBudgetNanos, () -> NashornCompatLayer.convertScriptObjectMirror(this.instance.invokeMethod(thiz, name, args)));
     }
 
     @Override
@@ -149,4 +249,165 @@ public final class NashornScriptEngine extends AbstractScriptEngine implements C
     public <T> T getInterface(final Object thiz, final Class<T> clazz) {
         return this.instance.getInterface(thiz, clazz);
     }
+
+    // Time budgets, profiling and metrics
+
+    public EngineMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    public void setTimeBudget(long timeout, TimeUnit unit) {
+        this.timeBudgetNanos = unit.toNanos(timeout);
+    }
+
+    public long getTimeBudget(TimeUnit unit) {
+        return unit.convert(this.timeBudgetNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public Object evalWithBudget(final String script, final long timeout, final TimeUnit unit) throws ScriptException {
+        ScriptContext ctxt = this.getContext();
+        long budgetNanos = unit.toNanos(timeout);
+        return this.call(false, () -> getScriptName(ctxt), budgetNanos, () -> this.evalScript(script, ctxt, budgetNanos));
+    }
+
+    public Object invokeFunctionWithBudget(final long timeout, final TimeUnit unit, final String name, final Object... args)
+        throws ScriptException, NoSuchMethodException {
+        return this.call(true, () -> name, unit.toNanos(timeout), () -> NashornCompatLayer.convertScriptObjectMirror(this.instance.invokeFunction(name, args)));
+    }
+
+    private <R, E extends Exception> R call(boolean invoke, Supplier<String> scriptName, long budgetNanos, ScriptWatchdog.ScriptCall<R, E> call) throws ScriptException, E {
+        Lock lock = this.metrics.beginUse();
+        boolean entered = ScriptProfiler.enter();
+        long start = System.nanoTime();
+        try {
+            return ScriptWatchdog.watch(scriptName, budgetNanos, call);
+        } catch (Exception | Error e) {
+            this.metrics.recordFailure(e instanceof ScriptTimeoutException);
+            throw e;
+        } finally {
+            if (invoke) {
+                this.metrics.recordInvoke(System.nanoTime() - start);
+            } else {
+                this.metrics.recordEval(System.nanoTime() - start);
+            }
+            ScriptProfiler.exit(entered);
+            lock.unlock();
+        }
+    }
+
+    // Every global the scripts run in gets the legacy type prelude if this engine was created with it,
+    // and the watchdog checkpoint when checkpointed code is about to run in it.
+    private void prepareGlobal(final ScriptContext ctxt, final boolean checkpointed) throws ScriptException {
+        if (checkpointed || this.prelude) {
+            this.prepareGlobal(NashornInternals.getGlobal(this.instance, ctxt), checkpointed);
+        }
+    }
+
+    private void prepareGlobal(final Bindings bindings, final boolean checkpointed) throws ScriptException {
+        if (checkpointed || this.prelude) {
+            this.prepareGlobal(NashornInternals.getGlobal(this.instance, bindings), checkpointed);
+        }
+    }
+
+    private void prepareGlobal(final org.openjdk.nashorn.api.scripting.ScriptObjectMirror global, final boolean checkpointed) {
+        if (checkpointed) {
+            ScriptCheckpoints.install(global);
+        }
+        if (this.prelude) {
+            LegacyTypeResolver.installPrelude(global);
+        }
+    }
+
+    private Object evalScript(String script, ScriptContext ctxt, long budgetNanos) throws ScriptException {
+        boolean checkpointed = isCheckpointed(budgetNanos);
+        this.prepareGlobal(ctxt, checkpointed);
+        return NashornCompatLayer.convertScriptObjectMirror(this.instance.eval(checkpointed ? ScriptCheckpoints.instrument(script) : script, ctxt));
+    }
+
+    // Only scripts running under a time budget are rewritten to pass a watchdog checkpoint in every loop and function,
+    // see ScriptCheckpoints. Others are left as they are, without parsing them twice.
+    private static boolean isCheckpointed(long budgetNanos) {
+        return budgetNanos > 0L && ScriptCheckpoints.isEnabled();
+    }
+
+    // URLReader scripts keep their own source name, so they are left alone and can only be interrupted.
+    private static boolean isCheckpointed(Reader reader, long budgetNanos) {
+        return isCheckpointed(budgetNanos) && !(reader instanceof URLReader);
+    }
+
+    private static String readScript(Reader reader) throws ScriptException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[8192];
+        try {
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        return sb.toString();
+    }
+
+    private static String getScriptName(Bindings bindings) {
+        return Objects.toString(bindings.get(ScriptEngine.FILENAME), "<eval>");
+    }
+
+    private static String getScriptName(ScriptContext ctxt) {
+        return Objects.toString(ctxt.getAttribute(ScriptEngine.FILENAME), "<eval>");
+    }
+
+    // Data-parallel execution, the worker engines are created the same way as this engine
+
+    public ParallelScriptFunction createParallelFunction(final String script, final String functionName) {
+        return this.createParallelFunction(script, functionName, Runtime.getRuntime().availableProcessors());
+    }
+
+    // Workers are charged to the owner of this engine, or to the caller if this engine isn't tracked
+    public ParallelScriptFunction createParallelFunction(final String script, final String functionName, final int parallelism) {
+        String owner = Objects.requireNonNullElseGet(this.metrics.getOwner(), EngineQuotas::findOwner);
+        return new ParallelScriptFunction(() -> NashornScriptEngineFactory.createEngineLike(this.instance, owner), script, functionName, parallelism);
+    }
+
+    // Footprint and quotas
+
+    public long estimateFootprint() {
+        return EngineFootprint.estimate(this);
+    }
+
+    // Drops whatever the scripts left in the global scope, afterwards every eval, invocation or compilation fails.
+    // Engines running a script aren't evicted, false is returned for them and for engines evicted before.
+    public boolean evict() {
+        return this.metrics.evictIfIdle(() -> NashornInternals.resetGlobal(this.instance));
+    }
+
+    // Compiled scripts can be evaluated in any global, which is prepared on every evaluation, and run under the time budget of the engine.
+    private final class PreparedScript extends CompiledScript {
+        private final CompiledScript compiledScript;
+        private final boolean checkpointed;
+
+        private PreparedScript(CompiledScript compiledScript, boolean checkpointed) {
+            this.compiledScript = compiledScript;
+            this.checkpointed = checkpointed;
+        }
+
+        // Nashorn only finds the global of bindings which are its own mirrors
+        @Override
+        public Object eval(Bindings bindings) throws ScriptException {
+            return super.eval(bindings instanceof ScriptObjectMirror ? ((ScriptObjectMirror) bindings).instance : bindings);
+        }
+
+        @Override
+        public Object eval(ScriptContext ctxt) throws ScriptException {
+            return NashornScriptEngine.this.call(false, () -> getScriptName(ctxt), NashornScriptEngine.this.timeBudgetNanos, () -> {
+                NashornScriptEngine.this.prepareGlobal(ctxt, this.checkpointed);
+                return this.compiledScript.eval(ctxt);
+            });
+        }
+
+        @Override
+        public ScriptEngine getEngine() {
+            return this.compiledScript.getEngine();
+        }
+    }
 }
@@ -25,13 +25,22 @@
 
 package jdk.nashorn.api.scripting;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
 
+import io.github.zekerzhayard.nashorncompatlayer.EngineQuotas;
+import io.github.zekerzhayard.nashorncompatlayer.LegacyTypeResolver;
 import io.github.zekerzhayard.nashorncompatlayer.NashornCompatLayer;
 
 public final class NashornScriptEngineFactory implements ScriptEngineFactory {
+    // How each engine of a legacy factory has been created
+    private final static Map<ScriptEngine, Supplier<ScriptEngine>> RECIPES = Collections.synchronizedMap(new WeakHashMap<>());
+
     public final org.openjdk.nashorn.api.scripting.NashornScriptEngineFactory instance;
 
     public NashornScriptEngineFactory() {
@@ -95,10 +104,34 @@ public final class NashornScriptEngineFactory implements ScriptEngineFactory {
 
     @Override
     public ScriptEngine getScriptEngine() {
-        return NashornCompatLayer.convertScriptEngine(this.instance.getScriptEngine());
+        return EngineQuotas.create(() -> withPrelude(this.instance::getScriptEngine));
     }
 
     public ScriptEngine getScriptEngine(ClassFilter classFilter) {
-        return NashornCompatLayer.convertScriptEngine(this.instance.getScriptEngine(classFilter::exposeToScripts));
+        return EngineQuotas.create(() -> withPrelude(() -> this.instance.getScriptEngine(classFilter::exposeToScripts)));
+    }
+
+    // Creates another engine the same way as the given one, with the same options and class filter, charged to the owner.
+    // Engines which weren't created by a legacy factory can only be recreated by their own factory.
+    static ScriptEngine createEngineLike(org.openjdk.nashorn.api.scripting.NashornScriptEngine engine, String owner) {
+        Supplier<ScriptEngine> recipe = RECIPES.get(engine);
+        if (recipe == null) {
+            return NashornCompatLayer.convertScriptEngine(engine.getFactory().getScriptEngine());
+        }
+        return EngineQuotas.create(owner, () -> withPrelude(recipe));
+    }
+
+    static boolean hasPrelude(org.openjdk.nashorn.api.scripting.NashornScriptEngine engine) {
+        return RECIPES.containsKey(engine);
+    }
+
+    // Scripts written for the legacy engine may still pass jdk.nashorn names to Java.type.
+    // The engine installs the prelude into every other global its scripts run in as well,
+    // except the globals scripts create themselves with loadWithNewGlobal.
+    private static ScriptEngine withPrelude(Supplier<ScriptEngine> recipe) {
+        ScriptEngine engine = recipe.get();
+        LegacyTypeResolver.installPrelude((org.openjdk.nashorn.api.scripting.NashornScriptEngine) engine);
+        RECIPES.put(engine, recipe);
+        return NashornCompatLayer.convertScriptEngine(engine);
     }
 }
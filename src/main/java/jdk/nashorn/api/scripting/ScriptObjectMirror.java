@@ -34,6 +34,8 @@ import java.util.Set;
 import javax.script.Bindings;
 
 import io.github.zekerzhayard.nashorncompatlayer.NashornCompatLayer;
+import io.github.zekerzhayard.nashorncompatlayer.NashornInternals;
+import io.github.zekerzhayard.nashorncompatlayer.ScriptProfiler;
 import org.openjdk.nashorn.api.scripting.AbstractJSObject;
 
 public final class ScriptObjectMirror extends AbstractJSObject implements Bindings {
@@ -60,14 +62,26 @@ public final class ScriptObjectMirror extends AbstractJSObject implements Bindin
 
     // JSObject methods
 
+    // Script functions called through a mirror are sampled by the profiler just like engine calls
+
     @Override
     public Object call(final Object thiz, final Object... args) {
-        return NashornCompatLayer.convertScriptObjectMirror(this.instance.call(NashornCompatLayer.convertScriptObjectMirror(thiz), args));
+        boolean entered = ScriptProfiler.enter();
+        try {
+            return NashornCompatLayer.convertScriptObjectMirror(this.instance.call(NashornCompatLayer.convertScriptObjectMirror(thiz), args));
+        } finally {
+            ScriptProfiler.exit(entered);
+        }
     }
 
     @Override
     public Object newObject(final Object... args) {
-        return NashornCompatLayer.convertScriptObjectMirror(this.instance.newObject(args));
+        boolean entered = ScriptProfiler.enter();
+        try {
+            return NashornCompatLayer.convertScriptObjectMirror(this.instance.newObject(args));
+        } finally {
+            ScriptProfiler.exit(entered);
+        }
     }
 
     @Override
@@ -135,6 +149,35 @@ public final class ScriptObjectMirror extends AbstractJSObject implements Bindin
         return this.instance.isArray();
     }
 
+    // ScriptObjectMirror methods
+
+    public Object callMember(final String functionName, final Object... args) {
+        boolean entered = ScriptProfiler.enter();
+        try {
+            return NashornCompatLayer.convertScriptObjectMirror(this.instance.callMember(functionName, args));
+        } finally {
+            ScriptProfiler.exit(entered);
+        }
+    }
+
+    // Batched JSObject methods
+
+    public Object[] getMembers(final String... names) {
+        return NashornInternals.getMembers(this.instance, names);
+    }
+
+    public void setMembers(final Map<String, ?> members) {
+        NashornInternals.setMembers(this.instance, members);
+    }
+
+    public Object[] getSlots(final int from, final int to) {
+        return NashornInternals.getSlots(this.instance, from, to);
+    }
+
+    public void setSlots(final int from, final Object... values) {
+        NashornInternals.setSlots(this.instance, from, values);
+    }
+
     // javax.script.Bindings methods
 
     @Override
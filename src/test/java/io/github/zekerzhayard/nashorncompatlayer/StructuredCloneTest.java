@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020-2021  ZekerZhayard
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package io.github.zekerzhayard.nashorncompatlayer;
+
+import javax.script.ScriptException;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.openjdk.nashorn.api.scripting.NashornScriptEngine;
+import org.openjdk.nashorn.api.scripting.NashornScriptEngineFactory;
+import org.openjdk.nashorn.api.scripting.ScriptObjectMirror;
+
+// Values are created in one engine, copied into another and checked there by a script predicate on the copy.
+public class StructuredCloneTest {
+    private NashornScriptEngine source;
+    private NashornScriptEngine target;
+
+    @BeforeEach
+    public void setUp() {
+        var factory = new NashornScriptEngineFactory();
+        this.source = (NashornScriptEngine) factory.getScriptEngine();
+        this.target = (NashornScriptEngine) factory.getScriptEngine();
+    }
+
+    @Test
+    public void cycles() throws ScriptException {
+        this.assertCopy(
+            "(function () { var o = { name: 'o' }; o.self = o; o.list = [o]; return o; })()",
+            "function (c) { return c.self === c && c.list[0] === c && c.name === 'o'; }"
+        );
+    }
+
+    @Test
+    public void sharedReferences() throws ScriptException {
+        this.assertCopy(
+            "(function () { var shared = { n: 1 }; return { a: shared, b: [shared, shared] }; })()",
+            "function (c) { return c.a === c.b[0] && c.a === c.b[1] && c.a.n === 1; }"
+        );
+    }
+
+    @Test
+    public void numbers() throws ScriptException {
+        this.assertCopy(
+            "({ zero: -0, array: [-0, 0], half: -0.5, big: 1e300, min: -2147483648, nan: NaN })",
+            "function (c) { return 1 / c.zero === -Infinity && 1 / c.array[0] === -Infinity && 1 / c.array[1] === Infinity && c.half === -0.5 && c.big === 1e300 && c.min === -2147483648 && c.nan !== c.nan; }"
+        );
+    }
+
+    @Test
+    public void strings() throws ScriptException {
+        this.assertCopy(
+            "({ cjk: '\\u4e2d\\u6587', emoji: '\\ud83d\\ude00', latin1: 'caf\\u00e9', empty: '', again: ['\\u4e2d\\u6587', 'caf\\u00e9'] })",
+            "function (c) { return c.cjk === '\\u4e2d\\u6587' && c.emoji === '\\ud83d\\ude00' && c.latin1 === 'caf\\u00e9' && c.empty === '' && c.again[0] === c.cjk && c.again[1] === c.latin1; }"
+        );
+    }
+
+    @Test
+    public void sparseAndIndexKeys() throws ScriptException {
+        this.assertCopy(
+            "(function () { var a = [1]; a[3] = 4; return { array: a, object: { 0: 'zero', 10: 'ten', u: undefined } }; })()",
+            "function (c) { return c.array.length === 4 && c.array[1] === undefined && c.array[3] === 4 && c.object[0] === 'zero' && c.object['10'] === 'ten' && 'u' in c.object; }"
+        );
+    }
+
+    @Test
+    public void deepNesting() throws ScriptException {
+        this.assertCopy(
+            "(function () { var o = {}; for (var i = 0; i < 100000; i++) o = { next: [o] }; return o; })()",
+            "function (c) { for (var i = 0; i < 100000; i++) c = c.next[0]; return typeof c === 'object' && c.next === undefined; }"
+        );
+    }
+
+    @Test
+    public void legacyMirrors() throws ScriptException {
+        var legacy = new jdk.nashorn.api.scripting.NashornScriptEngineFactory().getScriptEngine();
+        Object copy = StructuredClone.copyTo(NashornCompatLayer.convertScriptObjectMirror(this.source.eval("({ n: 1 })")), legacy);
+        Assertions.assertTrue(copy instanceof jdk.nashorn.api.scripting.ScriptObjectMirror);
+        Assertions.assertEquals(1, ((jdk.nashorn.api.scripting.ScriptObjectMirror) copy).getMember("n"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"new Date(0)", "/a/g", "new String('a')", "new Int8Array(1)", "(function () { return arguments; })()", "({ when: new Date(0) })", "({ f: function () {} })"})
+    public void rejectsUnsupportedObjects(String script) throws ScriptException {
+        Object value = this.source.eval(script);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> StructuredClone.serialize(value));
+    }
+
+    private void assertCopy(String script, String predicate) throws ScriptException {
+        Object copy = StructuredClone.copyTo(this.source.eval(script), this.target);
+        Assertions.assertEquals(Boolean.TRUE, ((ScriptObjectMirror) this.target.eval("(" + predicate + ")")).call(null, copy), script);
+    }
+}